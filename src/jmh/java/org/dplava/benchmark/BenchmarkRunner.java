@@ -0,0 +1,107 @@
+package org.dplava.benchmark;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Runs the benchmarks, writing the results as JSON, and optionally fails if any of
+ * them is slower than in a previous run.  Configured by system properties:
+ * benchmark.include (a regular expression selecting the benchmarks to run),
+ * benchmark.result (where to write the results), benchmark.baseline (the results of a
+ * previous run to compare against, if any) and benchmark.tolerance (the fraction by
+ * which a benchmark may be slower than the baseline, default 0.15).
+ */
+public class BenchmarkRunner {
+
+    public static void main(String [] args) throws Exception {
+        final Options options = new OptionsBuilder()
+                .include(System.getProperty("benchmark.include", ".*"))
+                .forks(Integer.getInteger("benchmark.forks", 1))
+                .warmupIterations(Integer.getInteger("benchmark.warmups", 3))
+                .measurementIterations(Integer.getInteger("benchmark.iterations", 5))
+                .result(System.getProperty("benchmark.result", "target/jmh-result.json"))
+                .resultFormat(ResultFormatType.JSON)
+                .build();
+        final Collection<RunResult> results = new Runner(options).run();
+
+        final String baseline = System.getProperty("benchmark.baseline", "");
+        if (!baseline.isEmpty()) {
+            final double tolerance = Double.parseDouble(System.getProperty("benchmark.tolerance", "0.15"));
+            if (!compare(readBaseline(baseline), results, tolerance)) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Compares each result with the baseline.  Every benchmark here measures the average
+     * time, so a higher score is worse.
+     * @return false if any benchmark regressed by more than the tolerance
+     */
+    private static boolean compare(final Map<String, Double> baseline, final Collection<RunResult> results, final double tolerance) {
+        boolean passed = true;
+        for (RunResult result : results) {
+            final String key = getKey(result.getParams().getBenchmark(), getParams(result.getParams()));
+            final Double previous = baseline.get(key);
+            final double score = result.getPrimaryResult().getScore();
+            if (previous == null) {
+                System.out.println("No baseline for " + key + ".");
+            } else if (score > previous * (1 + tolerance)) {
+                System.out.println(String.format("REGRESSION: %s took %.3f %s, compared to %.3f.", key, score, result.getPrimaryResult().getScoreUnit(), previous));
+                passed = false;
+            } else {
+                System.out.println(String.format("%s took %.3f %s, compared to %.3f.", key, score, result.getPrimaryResult().getScoreUnit(), previous));
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Reads the score of each benchmark from results written by a previous run.
+     */
+    private static Map<String, Double> readBaseline(final String path) throws IOException {
+        final Map<String, Double> scores = new HashMap<>();
+        try (InputStream in = new FileInputStream(path); JsonReader reader = Json.createReader(in)) {
+            for (JsonValue value : reader.readArray()) {
+                final JsonObject result = (JsonObject) value;
+                final Map<String, String> params = new TreeMap<>();
+                final JsonObject p = result.getJsonObject("params");
+                if (p != null) {
+                    for (String name : p.keySet()) {
+                        params.put(name, p.getString(name));
+                    }
+                }
+                scores.put(getKey(result.getString("benchmark"), params), result.getJsonObject("primaryMetric").getJsonNumber("score").doubleValue());
+            }
+        }
+        return scores;
+    }
+
+    private static Map<String, String> getParams(final BenchmarkParams params) {
+        final Map<String, String> result = new TreeMap<>();
+        for (String name : params.getParamsKeys()) {
+            result.put(name, params.getParam(name));
+        }
+        return result;
+    }
+
+    private static String getKey(final String benchmark, final Map<String, String> params) {
+        return params.isEmpty() ? benchmark : benchmark + params;
+    }
+}
@@ -0,0 +1,36 @@
+package org.dplava.benchmark;
+
+import org.dplava.validation.DPLAVAMetadataValidator;
+import org.dplava.validation.EmbeddedSchematronValidator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of compiling the validation rules, which is paid whenever the
+ * published schema changes (and for every commit before ValidatorService was shared).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConstructionBenchmark {
+
+    /**
+     * Constructs a validator as the service does, with the schematron stylesheet
+     * generated by any previous iteration already cached.
+     */
+    @Benchmark
+    public DPLAVAMetadataValidator newMetadataValidator() throws Exception {
+        return new DPLAVAMetadataValidator(SyntheticCorpus.getSchemaUrl(), true);
+    }
+
+    /**
+     * Generates and compiles the schematron stylesheet from scratch.
+     */
+    @Benchmark
+    public EmbeddedSchematronValidator newSchematronValidatorUncached() throws Exception {
+        return new EmbeddedSchematronValidator(SyntheticCorpus.getSchemaUrl(), null);
+    }
+}
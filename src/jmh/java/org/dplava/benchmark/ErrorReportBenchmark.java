@@ -0,0 +1,40 @@
+package org.dplava.benchmark;
+
+import org.dplava.validation.ErrorAggregator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the formatting of the error report for commits with many errors.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ErrorReportBenchmark {
+
+    @Param({ "1000", "10000", "100000" })
+    public int errorCount;
+
+    private ErrorAggregator errors;
+
+    @Setup
+    public void setUp() {
+        errors = new ErrorAggregator();
+        for (int i = 0; i < errorCount; i ++) {
+            errors.error(String.format("record-%06d.xml - At least one title element is required", i));
+        }
+    }
+
+    @Benchmark
+    public String getErrors() {
+        return errors.getErrors();
+    }
+}
@@ -0,0 +1,92 @@
+package org.dplava.benchmark;
+
+import org.dplava.git.IdentifierIndex;
+import org.dplava.validation.ErrorAggregator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xml.sax.InputSource;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the checks for duplicate identifiers made by RepositoryCommitValidator
+ * (without the git operations around them): a full check of every record, either
+ * reading the files or using the identifiers captured during validation, and the
+ * incremental check of a single changed record against an existing index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class IdentifierCheckBenchmark {
+
+    @Param({ "1000", "10000" })
+    public int records;
+
+    private List<File> files;
+
+    private List<String> identifiers;
+
+    private IdentifierIndex index;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        files = SyntheticCorpus.generate(records);
+        identifiers = new ArrayList<>();
+        index = new IdentifierIndex();
+        for (File file : files) {
+            final String id = IdentifierIndex.readIdentifier(new InputSource(file.toURI().toString()));
+            identifiers.add(id);
+            index.put(file.getName(), id);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticCorpus.delete(files);
+    }
+
+    @Benchmark
+    public ErrorAggregator fullCheckReadingFiles() throws Exception {
+        final IdentifierIndex index = new IdentifierIndex();
+        for (File file : files) {
+            index.put(file.getName(), IdentifierIndex.readIdentifier(new InputSource(file.toURI().toString())));
+        }
+        final ErrorAggregator errors = new ErrorAggregator();
+        index.checkForDuplicates(errors);
+        return errors;
+    }
+
+    @Benchmark
+    public ErrorAggregator fullCheckFromFacts() {
+        final IdentifierIndex index = new IdentifierIndex();
+        for (int i = 0; i < files.size(); i ++) {
+            index.put(files.get(i).getName(), identifiers.get(i));
+        }
+        final ErrorAggregator errors = new ErrorAggregator();
+        index.checkForDuplicates(errors);
+        return errors;
+    }
+
+    @Benchmark
+    public ErrorAggregator incrementalCheck() {
+        final String path = files.get(next).getName();
+        next = (next + 1) % files.size();
+        index.put(path, identifiers.get(next));
+        final ErrorAggregator errors = new ErrorAggregator();
+        index.checkForDuplicates(Collections.singletonList(path), errors);
+        return errors;
+    }
+}
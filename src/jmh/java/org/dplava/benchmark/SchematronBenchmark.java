@@ -0,0 +1,45 @@
+package org.dplava.benchmark;
+
+import org.dplava.validation.EmbeddedSchematronValidator;
+import org.dplava.validation.ErrorAggregator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the schematron validation of an already parsed record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SchematronBenchmark {
+
+    private EmbeddedSchematronValidator validator;
+
+    private Document document;
+
+    @Setup
+    public void setUp() throws Exception {
+        validator = new EmbeddedSchematronValidator(SyntheticCorpus.getSchemaUrl());
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        document = factory.newDocumentBuilder().parse(new InputSource(new StringReader(SyntheticCorpus.getSample("sample-valid.xml"))));
+    }
+
+    @Benchmark
+    public ErrorAggregator validateXmlDocument() {
+        final ErrorAggregator errors = new ErrorAggregator();
+        validator.validateXmlDocument("sample-valid.xml", document, errors);
+        return errors;
+    }
+}
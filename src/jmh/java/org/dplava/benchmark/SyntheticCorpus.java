@@ -0,0 +1,70 @@
+package org.dplava.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates a corpus of records for the benchmarks by copying the sample records in
+ * src/test/resources, each with its own identifier, and provides a local stand-in for
+ * the published schema so that no benchmark depends on the network.
+ */
+public class SyntheticCorpus {
+
+    /**
+     * The records copied into the corpus, in turn.  Most are valid, as in a typical push.
+     */
+    private static final String[] SAMPLES = { "sample-valid.xml", "sample-valid-dateset.xml", "sample-valid.xml", "sample-missing-title.xml" };
+
+    /**
+     * @return the URL of a local XSD (with embedded schematron rules) for the validators
+     */
+    public static String getSchemaUrl() {
+        return SyntheticCorpus.class.getClassLoader().getResource("sample-schematron.xsd").toString();
+    }
+
+    /**
+     * @return the content of the given sample record from the classpath
+     */
+    public static String getSample(final String name) throws IOException {
+        try (InputStream in = SyntheticCorpus.class.getClassLoader().getResourceAsStream(name)) {
+            return IOUtils.toString(in, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Writes the given number of records to a new temporary directory.
+     * @return the records, in order
+     */
+    public static List<File> generate(final int count) throws IOException {
+        final File dir = Files.createTempDirectory("dplava-benchmark").toFile();
+        final String[] samples = new String[SAMPLES.length];
+        for (int i = 0; i < SAMPLES.length; i ++) {
+            samples[i] = getSample(SAMPLES[i]);
+        }
+        final List<File> files = new ArrayList<>();
+        for (int i = 0; i < count; i ++) {
+            final File file = new File(dir, String.format("record-%06d.xml", i));
+            final String record = samples[i % samples.length].replaceFirst("<dcterms:identifier>[^<]*</dcterms:identifier>", "<dcterms:identifier>synthetic-" + i + "</dcterms:identifier>");
+            FileUtils.writeStringToFile(file, record, StandardCharsets.UTF_8);
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Deletes a corpus created by generate().
+     */
+    public static void delete(final List<File> files) {
+        if (!files.isEmpty()) {
+            FileUtils.deleteQuietly(files.get(0).getParentFile());
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.dplava.benchmark;
+
+import org.dplava.validation.DPLAVAMetadataValidator;
+import org.dplava.validation.ErrorAggregator;
+import org.dplava.validation.RecordFacts;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the validation of a single record, cycling through a synthetic corpus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ValidateFileBenchmark {
+
+    @Param({ "true", "false" })
+    public boolean streaming;
+
+    private List<File> files;
+
+    private DPLAVAMetadataValidator validator;
+
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        files = SyntheticCorpus.generate(1000);
+        validator = new DPLAVAMetadataValidator(SyntheticCorpus.getSchemaUrl(), streaming);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticCorpus.delete(files);
+    }
+
+    @Benchmark
+    public RecordFacts validateFile() throws Exception {
+        final File file = files.get(next);
+        next = (next + 1) % files.size();
+        return validator.validateFile(file, new ErrorAggregator());
+    }
+}
@@ -0,0 +1,197 @@
+package org.dplava.git;
+
+import org.dplava.util.Digests;
+import org.dplava.util.Environment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A local, persistent record of the validation status this service has reported for
+ * each commit, so that the last valid commit of a repository can be found without
+ * asking github about every commit in its history.
+ *
+ * Statuses are appended to one log file per repository, which is read into memory the
+ * first time the repository is accessed and rewritten then if it has accumulated many
+ * superseded entries.  This class is thread-safe.
+ */
+public class CommitStatusIndex {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommitStatusIndex.class);
+
+    private static CommitStatusIndex DEFAULT;
+
+    private File directory;
+
+    private Map<URI, Map<String, String>> statuses = new HashMap<>();
+
+    public CommitStatusIndex(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the shared index in the directory named by the COMMIT_STATUS_DIR environment
+     * variable, or in a subdirectory of the system temporary directory if unset.
+     */
+    public static synchronized CommitStatusIndex getDefault() {
+        if (DEFAULT == null) {
+            DEFAULT = new CommitStatusIndex(new File(Environment.getString("COMMIT_STATUS_DIR", new File(System.getProperty("java.io.tmpdir"), "dplava-commit-status").getPath())));
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * @return the last status recorded for the given commit, or null if none was
+     */
+    public synchronized String get(final URI repo, final String commitHash) {
+        return getStatuses(repo).get(commitHash);
+    }
+
+    /**
+     * Records the status of the given commit.  Failures are logged rather than thrown,
+     * as github remains the authoritative source of commit statuses.
+     */
+    public synchronized void put(final URI repo, final String commitHash, final String status) {
+        final Map<String, String> repoStatuses = getStatuses(repo);
+        if (status.equals(repoStatuses.put(commitHash, status))) {
+            return;
+        }
+        final File f = getFile(repo);
+        f.getParentFile().mkdirs();
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(f, true), StandardCharsets.UTF_8)) {
+            w.write(commitHash + " " + status + "\n");
+        } catch (IOException e) {
+            LOGGER.warn("Unable to record status of commit " + commitHash + " in " + f.getAbsolutePath() + ".", e);
+        }
+    }
+
+    /**
+     * Wraps a ValidityRegistry so that every status reported through it is recorded in
+     * this index, and so that statuses are looked up in this index before asking the
+     * wrapped registry, whose answers are recorded too.  Pending statuses are never
+     * answered locally (or recorded from the wrapped registry), as they may have been
+     * left behind by an interrupted validation.
+     */
+    public ValidityRegistry wrap(final ValidityRegistry registry) {
+        return new ValidityRegistry() {
+
+            @Override
+            public String getCommitStatus(URI repo, String commitHash) throws IOException {
+                final String status = get(repo, commitHash);
+                if (status != null && !status.equals(PENDING)) {
+                    return status;
+                }
+                final String remoteStatus = registry.getCommitStatus(repo, commitHash);
+                if (remoteStatus != null && !remoteStatus.equals(PENDING)) {
+                    put(repo, commitHash, remoteStatus);
+                }
+                return remoteStatus;
+            }
+
+            @Override
+            public void reportCommitInvalid(GithubPayload payload, String url) throws IOException {
+                registry.reportCommitInvalid(payload, url);
+                put(payload.getRepository(), payload.getCommitHash(), FAILURE);
+            }
+
+            @Override
+            public void reportCommitValid(GithubPayload payload) throws IOException {
+                registry.reportCommitValid(payload);
+                put(payload.getRepository(), payload.getCommitHash(), SUCCESS);
+            }
+
+            @Override
+            public void reportCommitInvalid(GithubPayload payload, String url, String ruleSetVersion) throws IOException {
+                registry.reportCommitInvalid(payload, url, ruleSetVersion);
+                put(payload.getRepository(), payload.getCommitHash(), FAILURE);
+            }
+
+            @Override
+            public void reportCommitValid(GithubPayload payload, String ruleSetVersion) throws IOException {
+                registry.reportCommitValid(payload, ruleSetVersion);
+                put(payload.getRepository(), payload.getCommitHash(), SUCCESS);
+            }
+
+            @Override
+            public void reportCommitPending(GithubPayload payload) throws IOException {
+                registry.reportCommitPending(payload);
+                put(payload.getRepository(), payload.getCommitHash(), PENDING);
+            }
+
+            @Override
+            public void reportSystemError(GithubPayload payload) throws IOException {
+                registry.reportSystemError(payload);
+                put(payload.getRepository(), payload.getCommitHash(), ERROR);
+            }
+
+            @Override
+            public void reportCommitSuperseded(GithubPayload payload) throws IOException {
+                registry.reportCommitSuperseded(payload);
+                put(payload.getRepository(), payload.getCommitHash(), ERROR);
+            }
+        };
+    }
+
+    private Map<String, String> getStatuses(final URI repo) {
+        Map<String, String> repoStatuses = statuses.get(repo);
+        if (repoStatuses == null) {
+            repoStatuses = new HashMap<>();
+            final File f = getFile(repo);
+            int lines = 0;
+            if (f.isFile()) {
+                try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+                    for (String line = r.readLine(); line != null; line = r.readLine()) {
+                        final String[] entry = line.split(" ");
+                        if (entry.length == 2) {
+                            repoStatuses.put(entry[0], entry[1]);
+                            lines ++;
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to read commit statuses from " + f.getAbsolutePath() + ".", e);
+                }
+            }
+            if (lines > repoStatuses.size() * 2) {
+                compact(f, repoStatuses);
+            }
+            statuses.put(repo, repoStatuses);
+        }
+        return repoStatuses;
+    }
+
+    private void compact(final File f, final Map<String, String> repoStatuses) {
+        try {
+            final File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+            try {
+                try (Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, String> entry : repoStatuses.entrySet()) {
+                        w.write(entry.getKey() + " " + entry.getValue() + "\n");
+                    }
+                }
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to compact commit statuses in " + f.getAbsolutePath() + ".", e);
+        }
+    }
+
+    private File getFile(final URI repo) {
+        return new File(directory, Digests.sha256Hex(repo.toString()) + ".log");
+    }
+}
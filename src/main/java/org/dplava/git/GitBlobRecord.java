@@ -0,0 +1,51 @@
+package org.dplava.git;
+
+import org.dplava.validation.RecordSource;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A record stored as a blob in a git repository, read directly from the object
+ * database rather than from a checked out working tree.
+ */
+public class GitBlobRecord implements RecordSource {
+
+    private Repository repository;
+
+    private String path;
+
+    private ObjectId blobId;
+
+    public GitBlobRecord(final Repository repository, final String path, final ObjectId blobId) {
+        this.repository = repository;
+        this.path = path;
+        this.blobId = blobId;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    public ObjectId getBlobId() {
+        return blobId;
+    }
+
+    @Override
+    public String getContentId() {
+        return blobId.getName();
+    }
+
+    /**
+     * Opens the blob.  Repository.open() uses its own ObjectReader, so this may be
+     * called concurrently from multiple threads.
+     */
+    @Override
+    public InputStream openStream() throws IOException {
+        return repository.open(blobId, Constants.OBJ_BLOB).openStream();
+    }
+}
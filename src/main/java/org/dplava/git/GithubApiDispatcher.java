@@ -0,0 +1,280 @@
+package org.dplava.git;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.dplava.util.Environment;
+import org.dplava.util.Metrics;
+import org.dplava.util.SharedHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sends requests to the github API, pacing them according to the rate limit reported
+ * by github and retrying those that fail because of rate limiting or server errors.
+ *
+ * The X-RateLimit-Remaining and X-RateLimit-Reset headers of every response are tracked
+ * so that once the remaining quota falls below a reserve, requests are spread out over
+ * the time until the limit resets (and held until then once it's exhausted) rather than
+ * failing.  Paced requests are given successive slots of a single schedule, however many
+ * threads are sending them, and those held until the limit resets are spaced out by
+ * the backoff delay until a response reports the new quota.  Responses with status 429
+ * or a 403 caused by rate limiting (which github guarantees weren't processed) are
+ * retried after the delay given by a Retry-After header, or otherwise after an
+ * exponential backoff with full jitter.  So are 5xx responses and I/O errors, but only
+ * for idempotent requests, as a POST that failed that way may nonetheless have
+ * succeeded (creating a duplicate gist, say, if retried).  The number of requests in
+ * flight at once is bounded, so that bursts of work queue here rather than tripping
+ * github's secondary rate limits.
+ *
+ * This class is thread-safe.
+ */
+public class GithubApiDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GithubApiDispatcher.class);
+
+    private static final Metrics METRICS = Metrics.getDefault();
+
+    private static GithubApiDispatcher DEFAULT;
+
+    private CloseableHttpClient client;
+
+    private Semaphore permits;
+
+    private int maxRetries;
+
+    private long backoffMillis;
+
+    private long maxWaitMillis;
+
+    private int reserve;
+
+    /**
+     * The number of requests remaining in the current rate limit window, or -1 if unknown.
+     */
+    private int remaining = -1;
+
+    /**
+     * The time at which the current rate limit window ends.
+     */
+    private long resetAt;
+
+    /**
+     * The earliest time at which the next paced request may be sent.
+     */
+    private long nextAllowedAt;
+
+    /**
+     * @param client the HttpClient through which requests are sent
+     * @param maxConcurrentRequests the maximum number of requests in flight at once
+     * @param maxRetries the number of times a failed request is retried
+     * @param backoffMillis the delay before the first retry, which doubles with each retry
+     * @param maxWaitMillis the longest that any one request will be delayed
+     * @param reserve the remaining quota below which requests are paced
+     */
+    public GithubApiDispatcher(final CloseableHttpClient client, final int maxConcurrentRequests, final int maxRetries, final long backoffMillis, final long maxWaitMillis, final int reserve) {
+        this.client = client;
+        this.permits = new Semaphore(maxConcurrentRequests, true);
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.reserve = reserve;
+    }
+
+    /**
+     * Gets the shared dispatcher, configured by the GITHUB_MAX_CONCURRENT_REQUESTS,
+     * GITHUB_MAX_RETRIES, GITHUB_BACKOFF_MS, GITHUB_MAX_WAIT_SECONDS and
+     * GITHUB_RATE_LIMIT_RESERVE environment variables.
+     */
+    public static synchronized GithubApiDispatcher getDefault() {
+        if (DEFAULT == null) {
+            DEFAULT = new GithubApiDispatcher(SharedHttpClient.get(),
+                    Environment.getInt("GITHUB_MAX_CONCURRENT_REQUESTS", 4),
+                    Environment.getInt("GITHUB_MAX_RETRIES", 5),
+                    Environment.getLong("GITHUB_BACKOFF_MS", 1000),
+                    Environment.getLong("GITHUB_MAX_WAIT_SECONDS", 300) * 1000,
+                    Environment.getInt("GITHUB_RATE_LIMIT_RESERVE", 100));
+            METRICS.gauge("dplava_github_rate_limit_remaining", "Github API requests remaining in the current rate limit window (-1 if unknown).", DEFAULT::getRemaining);
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Sends the request, retrying it as necessary, and passes the final response to the
+     * given handler.  The request must be repeatable.  Whatever the handler leaves of the
+     * response entity is consumed afterwards so that the connection can be reused.
+     * @return the value returned by the handler
+     */
+    public <T> T execute(final HttpRequestBase request, final HttpClientContext context, final ResponseHandler<T> handler) throws IOException {
+        for (int attempt = 0; ; attempt ++) {
+            sleep(getPacingDelay());
+            long retryDelay;
+            acquire();
+            final long start = System.currentTimeMillis();
+            try (CloseableHttpResponse response = client.execute(request, context)) {
+                updateRateLimit(response);
+                final int status = response.getStatusLine().getStatusCode();
+                recordResponse(request, start, String.valueOf(status));
+                if (attempt >= maxRetries || !isRetryable(request, status, response)) {
+                    try {
+                        return handler.handleResponse(response);
+                    } finally {
+                        EntityUtils.consumeQuietly(response.getEntity());
+                    }
+                }
+                EntityUtils.consume(response.getEntity());
+                retryDelay = getRetryDelay(response, attempt);
+                LOGGER.info("Retrying " + request.getMethod() + " to " + request.getURI() + " after status " + status + " in " + retryDelay + " ms.");
+            } catch (IOException e) {
+                recordResponse(request, start, "io_error");
+                if (attempt >= maxRetries || !isIdempotent(request)) {
+                    throw e;
+                }
+                retryDelay = getBackoff(attempt);
+                LOGGER.info("Retrying " + request.getMethod() + " to " + request.getURI() + " after " + e + " in " + retryDelay + " ms.");
+            } finally {
+                permits.release();
+            }
+            sleep(retryDelay);
+        }
+    }
+
+    /**
+     * Records the latency and outcome (the status code, or "io_error") of a single attempt.
+     */
+    private static void recordResponse(final HttpRequestBase request, final long start, final String status) {
+        METRICS.histogram("dplava_github_request_seconds", "Latency of Github API requests (each attempt separately).", "method", request.getMethod()).observeSince(start);
+        METRICS.counter("dplava_github_responses_total", "Github API responses, by status code.", "method", request.getMethod(), "status", status).increment();
+    }
+
+    /**
+     * @return the number of requests remaining in the current rate limit window, or -1
+     *         if unknown
+     */
+    public synchronized int getRemaining() {
+        return remaining;
+    }
+
+    private void acquire() throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Gets the delay before the next request may be sent in order to stay within the
+     * rate limit, and counts that request against the remaining quota.  Once the quota
+     * is below the reserve, each request is given the next free slot, and the slot after
+     * it is set an even share of the rest of the window later.
+     */
+    synchronized long getPacingDelay() {
+        final long now = System.currentTimeMillis();
+        if (remaining < 0 || remaining >= reserve) {
+            if (remaining > 0 && now < resetAt) {
+                remaining --;
+            }
+            return 0;
+        }
+        long slot = Math.max(now, nextAllowedAt);
+        final long interval;
+        if (slot >= resetAt) {
+            // the limit will have reset, but the new quota isn't known until a response
+            // reports it
+            interval = backoffMillis;
+        } else if (remaining == 0) {
+            LOGGER.warn("Github API rate limit exhausted; waiting " + (resetAt - now) + " ms for it to reset.");
+            slot = resetAt;
+            interval = backoffMillis;
+        } else {
+            interval = (resetAt - slot) / remaining;
+            remaining --;
+        }
+        nextAllowedAt = slot + interval;
+        return Math.min(slot - now, maxWaitMillis);
+    }
+
+    synchronized void updateRateLimit(final HttpResponse response) {
+        final Header remainingHeader = response.getFirstHeader("X-RateLimit-Remaining");
+        final Header resetHeader = response.getFirstHeader("X-RateLimit-Reset");
+        try {
+            if (remainingHeader != null && resetHeader != null) {
+                remaining = Integer.parseInt(remainingHeader.getValue().trim());
+                resetAt = Long.parseLong(resetHeader.getValue().trim()) * 1000;
+                if (remaining >= reserve) {
+                    nextAllowedAt = 0;
+                }
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Unparsible rate limit headers " + remainingHeader + ", " + resetHeader + ".");
+        }
+    }
+
+    private boolean isRetryable(final HttpRequestBase request, final int status, final HttpResponse response) {
+        if (status == 429) {
+            return true;
+        }
+        if (status >= 500) {
+            return isIdempotent(request);
+        }
+        if (status == 403) {
+            final Header remainingHeader = response.getFirstHeader("X-RateLimit-Remaining");
+            return response.getFirstHeader("Retry-After") != null || (remainingHeader != null && remainingHeader.getValue().trim().equals("0"));
+        }
+        return false;
+    }
+
+    private static boolean isIdempotent(final HttpRequestBase request) {
+        return request.getMethod().equals("GET") || request.getMethod().equals("HEAD");
+    }
+
+    private long getRetryDelay(final HttpResponse response, final int attempt) {
+        final Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return Math.min(Long.parseLong(retryAfter.getValue().trim()) * 1000, maxWaitMillis);
+            } catch (NumberFormatException e) {
+                LOGGER.debug("Unparsible Retry-After value of \"" + retryAfter.getValue() + "\".");
+            }
+        }
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (remaining == 0 && resetAt > now) {
+                return Math.min(resetAt - now, maxWaitMillis);
+            }
+        }
+        return getBackoff(attempt);
+    }
+
+    /**
+     * An exponential backoff with full jitter.
+     */
+    private long getBackoff(final int attempt) {
+        final long ceiling = Math.min(backoffMillis << Math.min(attempt, 20), maxWaitMillis);
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static void sleep(final long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+}
@@ -22,8 +22,12 @@ public class GithubPayload {
 
     private JsonObject payload;
     private URI repository;
+    private byte[] payloadBytes;
+    private String signature;
     
     public GithubPayload(byte[] payloadBytes, String signature) {
+        this.payloadBytes = payloadBytes;
+        this.signature = signature;
         try {
             if (!computeDigest(payloadBytes).equalsIgnoreCase(signature)) {
                 File dump = new File("payload-dump.bin");
@@ -59,10 +63,28 @@ public class GithubPayload {
         return payload.getString("after");
     }
 
+    /**
+     * Gets the commit that the ref pointed to before the push, or null if unknown.
+     */
+    public String getPreviousCommitHash() {
+        return payload.getString("before", null);
+    }
+
     public String getEmail() {
         return payload.getJsonObject("pusher").getString("email");
     }
     
+    /**
+     * Gets the raw body of the event, exactly as signed.
+     */
+    byte[] getPayloadBytes() {
+        return payloadBytes;
+    }
+
+    String getSignature() {
+        return signature;
+    }
+
     public String getCommitURL() {
         return payload.getJsonArray("commits").getJsonObject(0).getString("url");
     }
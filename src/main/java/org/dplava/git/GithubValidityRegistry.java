@@ -1,9 +1,21 @@
 package org.dplava.git;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 
 import javax.json.Json;
 import javax.json.JsonArray;
@@ -20,19 +32,20 @@ import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.CredentialsProvider;
-import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpHead;
 import org.apache.http.client.methods.HttpPatch;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.auth.BasicScheme;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
+import org.dplava.validation.ErrorAggregator;
+import org.dplava.validation.ErrorRenderer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -60,40 +73,79 @@ public class GithubValidityRegistry implements ValidityRegistry, ReportPersisten
 
     private static final Logger LOGGER = LoggerFactory.getLogger(GithubValidityRegistry.class);
 
+    /**
+     * The credentials and preemptive authentication schemes are built once and shared, as
+     * all requests are made with the same credentials through the shared HttpClient.
+     */
+    private static CredentialsProvider CREDENTIALS;
+
+    private static final AuthCache AUTH_CACHE = new BasicAuthCache();
+
+    /**
+     * Status lookups currently in flight, by repository and commit, so that concurrent
+     * lookups of the same commit share a single request.
+     */
+    private static final ConcurrentHashMap<String, CompletableFuture<String>> STATUS_LOOKUPS = new ConcurrentHashMap<>();
+
+    private GithubApiDispatcher dispatcher = GithubApiDispatcher.getDefault();
+
     public boolean checkAuthentication() throws IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpHead head = new HttpHead(BASE_URL + "/user");
-            head.setHeader("Accept", "application/vnd.github.v3+json");
-            try (CloseableHttpResponse response = client.execute(head, basicAuth(BASE_URL))) {
-                return isValidStatus(response.getStatusLine().getStatusCode());
-            }
-        }
+        HttpHead head = new HttpHead(BASE_URL + "/user");
+        head.setHeader("Accept", "application/vnd.github.v3+json");
+        return dispatcher.execute(head, basicAuth(BASE_URL), response -> isValidStatus(response.getStatusLine().getStatusCode()));
     }
 
     @Override
     public String getCommitStatus(URI repo, String commitHash) throws IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpGet get = new HttpGet(BASE_URL + "/repos" + repo.getPath() + "/commits/" + commitHash + "/statuses");
-            get.setHeader("Accept", "application/vnd.github.v3+json");
-            try (CloseableHttpResponse response = client.execute(get, basicAuth(BASE_URL))) {
-                if (isValidStatus(response.getStatusLine().getStatusCode())) {
-                    JsonArray a = Json.createReader(response.getEntity().getContent()).readArray();
-                    for (int i = 0; i < a.size(); i++) {
-                        JsonObject status = (JsonObject) a.get(i);
-                        final String state = status.getString("state");
-                        final String context = status.getString("context");
-                        if (context.equals(CONTEXT)) {
-                            return state;
-                        }
+        final String key = repo.getPath() + "@" + commitHash;
+        final CompletableFuture<String> lookup = new CompletableFuture<>();
+        final CompletableFuture<String> existing = STATUS_LOOKUPS.putIfAbsent(key, lookup);
+        if (existing != null) {
+            try {
+                return existing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+        try {
+            final String status = fetchCommitStatus(repo, commitHash);
+            lookup.complete(status);
+            return status;
+        } catch (IOException | RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            STATUS_LOOKUPS.remove(key, lookup);
+        }
+    }
+
+    private String fetchCommitStatus(URI repo, String commitHash) throws IOException {
+        HttpGet get = new HttpGet(BASE_URL + "/repos" + repo.getPath() + "/commits/" + commitHash + "/statuses");
+        get.setHeader("Accept", "application/vnd.github.v3+json");
+        return dispatcher.execute(get, basicAuth(BASE_URL), response -> {
+            if (isValidStatus(response.getStatusLine().getStatusCode())) {
+                JsonArray a = Json.createReader(response.getEntity().getContent()).readArray();
+                for (int i = 0; i < a.size(); i++) {
+                    JsonObject status = (JsonObject) a.get(i);
+                    final String state = status.getString("state");
+                    final String context = status.getString("context");
+                    if (context.equals(CONTEXT)) {
+                        return state;
                     }
-                } else {
-                    logUnexpectedResponse(get, response);
                 }
+            } else {
+                logUnexpectedResponse(get, response);
             }
             // TODO: paging might be necessary in some contexts, but not in our initial design, assuming github will
             // always return a single status on a single page
-        }
-        return null;
+            return null;
+        });
     }
 
     public static String getSMTPHostname() {
@@ -124,7 +176,12 @@ public class GithubValidityRegistry implements ValidityRegistry, ReportPersisten
 
     @Override
     public void reportCommitInvalid(GithubPayload payload, String url) throws IOException {
-        postStatus(payload, FAILURE, url);
+        reportCommitInvalid(payload, url, null);
+    }
+
+    @Override
+    public void reportCommitInvalid(GithubPayload payload, String url, String ruleSetVersion) throws IOException {
+        postStatus(payload, FAILURE, url, describeRules(ruleSetVersion));
         
         //notify pusher via email
         try {
@@ -152,10 +209,22 @@ public class GithubValidityRegistry implements ValidityRegistry, ReportPersisten
 
     @Override
     public void reportCommitValid(GithubPayload payload) throws IOException {
-        postStatus(payload, SUCCESS, null);
+        reportCommitValid(payload, null);
+    }
+
+    @Override
+    public void reportCommitValid(GithubPayload payload, String ruleSetVersion) throws IOException {
+        postStatus(payload, SUCCESS, null, describeRules(ruleSetVersion));
         mergeToHarvestBranch(payload);
     }
 
+    /**
+     * @return the status description noting the version of the rules, or null if unknown
+     */
+    private static String describeRules(final String ruleSetVersion) {
+        return ruleSetVersion == null ? null : "Validated against rule set " + ruleSetVersion + ".";
+    }
+
     @Override
     public void reportCommitPending(GithubPayload payload) throws IOException {
         postStatus(payload, PENDING, null);
@@ -166,22 +235,33 @@ public class GithubValidityRegistry implements ValidityRegistry, ReportPersisten
         postStatus(payload, ERROR, null);
     }
 
+    @Override
+    public void reportCommitSuperseded(GithubPayload payload) throws IOException {
+        postStatus(payload, ERROR, null, "Not validated: superseded by a later push.");
+    }
+
     private void postStatus(GithubPayload payload, final String state, final String url) throws IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            final String posturl = BASE_URL + "/repos" + payload.getRepository().getPath() + "/statuses/" + payload.getCommitHash();
-            LOGGER.debug("Posting status \"" + state + "\", to " + posturl);
-            HttpPost post = new HttpPost(posturl);
-            JsonObjectBuilder statusJson = Json.createObjectBuilder().add("state", state).add("context", CONTEXT);
-            if (url != null) {
-                statusJson.add("target_url", url);
-            }
-            post.setEntity(new StringEntity(statusJson.build().toString()));
-            try (CloseableHttpResponse response = client.execute(post, basicAuth(posturl))) {
-                if (!isValidStatus(response.getStatusLine().getStatusCode())) {
-                    throw new RuntimeException("Unexpected status code! " + response.getStatusLine().getStatusCode());
-                }
-            }
+        postStatus(payload, state, url, null);
+    }
+
+    private void postStatus(GithubPayload payload, final String state, final String url, final String description) throws IOException {
+        final String posturl = BASE_URL + "/repos" + payload.getRepository().getPath() + "/statuses/" + payload.getCommitHash();
+        LOGGER.debug("Posting status \"" + state + "\", to " + posturl);
+        HttpPost post = new HttpPost(posturl);
+        JsonObjectBuilder statusJson = Json.createObjectBuilder().add("state", state).add("context", CONTEXT);
+        if (url != null) {
+            statusJson.add("target_url", url);
         }
+        if (description != null) {
+            statusJson.add("description", description);
+        }
+        post.setEntity(new StringEntity(statusJson.build().toString()));
+        dispatcher.execute(post, basicAuth(posturl), response -> {
+            if (!isValidStatus(response.getStatusLine().getStatusCode())) {
+                throw new RuntimeException("Unexpected status code! " + response.getStatusLine().getStatusCode());
+            }
+            return null;
+        });
     }
 
 
@@ -197,47 +277,43 @@ public class GithubValidityRegistry implements ValidityRegistry, ReportPersisten
     }
 
     private boolean checkRef(URI repo) throws IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            final String headurl = BASE_URL + "/repos" + repo.getPath() + "/git/refs/heads/" + BRANCH;
-            final HttpHead head = new HttpHead(headurl);
-            try (CloseableHttpResponse response = client.execute(head, basicAuth(headurl))) {
-                final int code = response.getStatusLine().getStatusCode();
-                if (code == 404) {
-                    return false;
-                } else if (isValidStatus(response.getStatusLine().getStatusCode())) {
-                    return true;
-                } else {
-                    logUnexpectedResponse(head, response);
-                    return false;
-                }
+        final String headurl = BASE_URL + "/repos" + repo.getPath() + "/git/refs/heads/" + BRANCH;
+        final HttpHead head = new HttpHead(headurl);
+        return dispatcher.execute(head, basicAuth(headurl), response -> {
+            final int code = response.getStatusLine().getStatusCode();
+            if (code == 404) {
+                return false;
+            } else if (isValidStatus(response.getStatusLine().getStatusCode())) {
+                return true;
+            } else {
+                logUnexpectedResponse(head, response);
+                return false;
             }
-        }
+        });
     }
 
     private void updateRef(GithubPayload payload) throws IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            final String patchurl = BASE_URL + "/repos" + payload.getRepository().getPath() + "/git/refs/heads/" + BRANCH;
-            final HttpPatch updateRefPatch = new HttpPatch(patchurl);
-            updateRefPatch.setEntity(new StringEntity(Json.createObjectBuilder().add("sha", payload.getCommitHash()).add("force", true).build().toString()));
-            try (CloseableHttpResponse response = client.execute(updateRefPatch, basicAuth(patchurl))) {
-                if (!isValidStatus(response.getStatusLine().getStatusCode())) {
-                    logUnexpectedResponse(updateRefPatch, response);
-                }
+        final String patchurl = BASE_URL + "/repos" + payload.getRepository().getPath() + "/git/refs/heads/" + BRANCH;
+        final HttpPatch updateRefPatch = new HttpPatch(patchurl);
+        updateRefPatch.setEntity(new StringEntity(Json.createObjectBuilder().add("sha", payload.getCommitHash()).add("force", true).build().toString()));
+        dispatcher.execute(updateRefPatch, basicAuth(patchurl), response -> {
+            if (!isValidStatus(response.getStatusLine().getStatusCode())) {
+                logUnexpectedResponse(updateRefPatch, response);
             }
-        }
+            return null;
+        });
     }
 
     private void createRef(GithubPayload payload) throws IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            final String posturl = BASE_URL + "/repos" + payload.getRepository().getPath() + "/git/refs";
-            final HttpPost createRefPost = new HttpPost(posturl);
-            createRefPost.setEntity(new StringEntity(Json.createObjectBuilder().add("ref", "refs/heads/" + BRANCH).add("sha", payload.getCommitHash()).build().toString()));
-            try (CloseableHttpResponse response = client.execute(createRefPost, basicAuth(posturl))) {
-                if (!isValidStatus(response.getStatusLine().getStatusCode())) {
-                    logUnexpectedResponse(createRefPost, response);
-                }
+        final String posturl = BASE_URL + "/repos" + payload.getRepository().getPath() + "/git/refs";
+        final HttpPost createRefPost = new HttpPost(posturl);
+        createRefPost.setEntity(new StringEntity(Json.createObjectBuilder().add("ref", "refs/heads/" + BRANCH).add("sha", payload.getCommitHash()).build().toString()));
+        dispatcher.execute(createRefPost, basicAuth(posturl), response -> {
+            if (!isValidStatus(response.getStatusLine().getStatusCode())) {
+                logUnexpectedResponse(createRefPost, response);
             }
-        }
+            return null;
+        });
     }
 
     private static void logUnexpectedResponse(HttpRequestBase request, HttpResponse response) throws IOException {
@@ -258,24 +334,137 @@ public class GithubValidityRegistry implements ValidityRegistry, ReportPersisten
 
     @Override
     public String writeFailureReport(GithubPayload payload, String report) throws IOException {
+        return createReportGist(out -> out.write(report));
+    }
+
+    /**
+     * Writes the report straight from the errors (which may have been spilled to disk)
+     * into the request, so the report is never held in memory.
+     */
+    @Override
+    public String writeFailureReport(GithubPayload payload, ErrorAggregator errors) throws IOException {
+        return createReportGist(out -> ErrorRenderer.writeText(errors, out));
+    }
+
+    private String createReportGist(final GistContent report) throws IOException {
         final String filename = "report.txt";
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            final String posturl = BASE_URL + "/gists";
-            final HttpPost createGistPost = new HttpPost(posturl);
-            createGistPost.setEntity(new StringEntity(Json.createObjectBuilder()
-                    .add("description", "automatically generated validation report")
-                    .add("public", true)
-                    .add("files", Json.createObjectBuilder().add(filename, Json.createObjectBuilder().add("content", report).build()).build()).build().toString()));
-            try (CloseableHttpResponse response = client.execute(createGistPost, basicAuth(posturl))) {
-                if (!isValidStatus(response.getStatusLine().getStatusCode())) {
-                    logUnexpectedResponse(createGistPost, response);
-                } else {
-                    JsonObject responseObject = Json.createReader(response.getEntity().getContent()).readObject();
-                    return responseObject.getJsonObject("files").getJsonObject(filename).getString("raw_url");
+        final String posturl = BASE_URL + "/gists";
+        final HttpPost createGistPost = new HttpPost(posturl);
+        createGistPost.setEntity(new GistEntity("automatically generated validation report", filename, report));
+        return dispatcher.execute(createGistPost, basicAuth(posturl), response -> {
+            if (!isValidStatus(response.getStatusLine().getStatusCode())) {
+                logUnexpectedResponse(createGistPost, response);
+            } else {
+                JsonObject responseObject = Json.createReader(response.getEntity().getContent()).readObject();
+                return responseObject.getJsonObject("files").getJsonObject(filename).getString("raw_url");
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Writes the content of a file in a gist.
+     */
+    private interface GistContent {
+        void writeTo(Writer out) throws IOException;
+    }
+
+    /**
+     * The JSON body of a request to create a public gist with a single file, whose
+     * content is escaped as it's written rather than built as a String first.  The
+     * content is written anew each time the entity is, so it may be retried.
+     */
+    private static class GistEntity extends AbstractHttpEntity {
+
+        private String description;
+
+        private String filename;
+
+        private GistContent content;
+
+        GistEntity(final String description, final String filename, final GistContent content) {
+            this.description = description;
+            this.filename = filename;
+            this.content = content;
+            setContentType(ContentType.APPLICATION_JSON.toString());
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeTo(out);
+            return new ByteArrayInputStream(out.toByteArray());
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public void writeTo(final OutputStream outStream) throws IOException {
+            final Writer out = new BufferedWriter(new OutputStreamWriter(outStream, StandardCharsets.UTF_8));
+            out.write("{\"description\":" + quote(description) + ",\"public\":true,\"files\":{" + quote(filename) + ":{\"content\":\"");
+            content.writeTo(new JsonStringWriter(out));
+            out.write("\"}}}");
+            out.flush();
+        }
+
+        private static String quote(final String value) {
+            return Json.createArrayBuilder().add(value).build().toString().replaceAll("^\\[|\\]$", "");
+        }
+    }
+
+    /**
+     * Escapes the characters written to it for inclusion in a JSON string.
+     */
+    private static class JsonStringWriter extends Writer {
+
+        private Writer out;
+
+        JsonStringWriter(final Writer out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(final char[] cbuf, final int off, final int len) throws IOException {
+            for (int i = off; i < off + len; i ++) {
+                final char c = cbuf[i];
+                switch (c) {
+                    case '"': out.write("\\\""); break;
+                    case '\\': out.write("\\\\"); break;
+                    case '\n': out.write("\\n"); break;
+                    case '\r': out.write("\\r"); break;
+                    case '\t': out.write("\\t"); break;
+                    default:
+                        if (c < 0x20) {
+                            out.write(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.write(c);
+                        }
                 }
             }
         }
-        return null;
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
     }
 
     private HttpClientContext basicAuth(final String urlStr) throws MalformedURLException {
@@ -285,17 +474,26 @@ public class GithubValidityRegistry implements ValidityRegistry, ReportPersisten
         }
         URL url = new URL(urlStr);
         HttpHost targetHost = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
-        CredentialsProvider credsProvider = new BasicCredentialsProvider();
-        credsProvider.setCredentials(AuthScope.ANY,
-                new UsernamePasswordCredentials(getUser(), getToken()));
-        AuthCache authCache = new BasicAuthCache();
-        authCache.put(targetHost, new BasicScheme());
+        if (AUTH_CACHE.get(targetHost) == null) {
+            AUTH_CACHE.put(targetHost, new BasicScheme());
+        }
         final HttpClientContext context = HttpClientContext.create();
-        context.setCredentialsProvider(credsProvider);
-        context.setAuthCache(authCache);
+        context.setCredentialsProvider(getCredentials());
+        context.setAuthCache(AUTH_CACHE);
         return context;
     }
 
+    private CredentialsProvider getCredentials() {
+        synchronized (GithubValidityRegistry.class) {
+            if (CREDENTIALS == null) {
+                CREDENTIALS = new BasicCredentialsProvider();
+                CREDENTIALS.setCredentials(AuthScope.ANY,
+                        new UsernamePasswordCredentials(getUser(), getToken()));
+            }
+            return CREDENTIALS;
+        }
+    }
+
     private String getUser() {
         return System.getenv("GITHUB_USERNAME");
     }
@@ -0,0 +1,171 @@
+package org.dplava.git;
+
+import org.dplava.validation.ErrorAggregator;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * An index of the dcterms:identifier of every record in a repository, by path,
+ * which allows identifiers to be checked for uniqueness without reading every
+ * record.
+ *
+ * This class is not thread-safe.
+ */
+public class IdentifierIndex {
+
+    private static final String DCTERMS = "http://purl.org/dc/terms/";
+
+    private static final SAXParserFactory PARSER_FACTORY = SAXParserFactory.newInstance();
+
+    static {
+        PARSER_FACTORY.setNamespaceAware(true);
+    }
+
+    private Map<String, String> pathToId;
+
+    private Map<String, Set<String>> idToPaths;
+
+    public IdentifierIndex() {
+        pathToId = new TreeMap<>();
+        idToPaths = new TreeMap<>();
+    }
+
+    /**
+     * Records the identifier of the record at the given path, replacing any previous value.
+     * @param id the identifier, or null if the record has none
+     */
+    public void put(final String path, final String id) {
+        remove(path);
+        if (id != null) {
+            pathToId.put(path, id);
+            idToPaths.computeIfAbsent(id, k -> new TreeSet<>()).add(path);
+        }
+    }
+
+    public void remove(final String path) {
+        final String id = pathToId.remove(path);
+        if (id != null) {
+            final Set<String> paths = idToPaths.get(id);
+            paths.remove(path);
+            if (paths.isEmpty()) {
+                idToPaths.remove(id);
+            }
+        }
+    }
+
+    public String getId(final String path) {
+        return pathToId.get(path);
+    }
+
+    public Set<String> getPaths(final String id) {
+        final Set<String> paths = idToPaths.get(id);
+        return paths == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(paths);
+    }
+
+    public Map<String, String> getIdentifiers() {
+        return Collections.unmodifiableMap(pathToId);
+    }
+
+    public int size() {
+        return pathToId.size();
+    }
+
+    /**
+     * Adds an error for each record that shares its identifier with any of the records
+     * at the given paths.
+     */
+    public void checkForDuplicates(final Collection<String> paths, final ErrorAggregator errors) {
+        final Set<String> ids = new LinkedHashSet<>();
+        for (String path : paths) {
+            final String id = pathToId.get(path);
+            if (id != null) {
+                ids.add(id);
+            }
+        }
+        for (String id : ids) {
+            final List<String> sharing = new ArrayList<>(idToPaths.get(id));
+            for (int i = 1; i < sharing.size(); i ++) {
+                errors.error(null, "duplicate-identifier", "Files \"" + getName(sharing.get(0)) + "\" and \"" + getName(sharing.get(i)) + "\" have the same id.");
+            }
+        }
+    }
+
+    /**
+     * Checks every record in the index for duplicate identifiers.
+     */
+    public void checkForDuplicates(final ErrorAggregator errors) {
+        checkForDuplicates(pathToId.keySet(), errors);
+    }
+
+    private static String getName(final String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * Reads the first dcterms:identifier from an XML record.
+     * @return the identifier or null if the record has none
+     */
+    public static String readIdentifier(final InputSource source) throws SAXException, IOException {
+        final IdentifierHandler h = new IdentifierHandler();
+        try {
+            final SAXParser parser;
+            synchronized (PARSER_FACTORY) {
+                parser = PARSER_FACTORY.newSAXParser();
+            }
+            parser.parse(source, h);
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        } catch (IdentifierFound e) {
+            // stop parsing as soon as the identifier has been read
+        }
+        return h.id == null ? null : h.id.toString();
+    }
+
+    private static class IdentifierHandler extends DefaultHandler {
+
+        private StringBuilder id;
+
+        private boolean inIdentifier;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (DCTERMS.equals(uri) && localName.equals("identifier")) {
+                inIdentifier = true;
+                id = new StringBuilder();
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (inIdentifier) {
+                id.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (inIdentifier && DCTERMS.equals(uri) && localName.equals("identifier")) {
+                throw new IdentifierFound();
+            }
+        }
+    }
+
+    private static class IdentifierFound extends SAXException {
+    }
+}
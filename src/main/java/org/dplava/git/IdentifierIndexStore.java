@@ -0,0 +1,111 @@
+package org.dplava.git;
+
+import org.dplava.util.Digests;
+import org.dplava.util.Environment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Persists the IdentifierIndex of valid commits to local disk, so that when the next
+ * commit to a repository is validated its identifiers can be checked by updating the
+ * index of the last valid commit with just the changed files.
+ *
+ * This class is thread-safe.
+ */
+public class IdentifierIndexStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdentifierIndexStore.class);
+
+    /**
+     * The number of indexes retained for each repository.
+     */
+    private static final int RETAINED = 5;
+
+    private File directory;
+
+    public IdentifierIndexStore(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Gets a store in the directory named by the IDENTIFIER_INDEX_DIR environment variable,
+     * or in a subdirectory of the system temporary directory if unset.
+     */
+    public static IdentifierIndexStore getDefault() {
+        return new IdentifierIndexStore(new File(Environment.getString("IDENTIFIER_INDEX_DIR", new File(System.getProperty("java.io.tmpdir"), "dplava-identifier-index").getPath())));
+    }
+
+    /**
+     * @return the index stored for the given commit, or null if there is none
+     */
+    public IdentifierIndex load(final URI repo, final String commitHash) {
+        final File f = new File(getRepositoryDirectory(repo), commitHash + ".properties");
+        if (!f.isFile()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(f)) {
+            final Properties p = new Properties();
+            p.load(in);
+            final IdentifierIndex index = new IdentifierIndex();
+            for (String path : p.stringPropertyNames()) {
+                index.put(path, p.getProperty(path));
+            }
+            return index;
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read identifier index " + f.getAbsolutePath() + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the index for the given commit, removing the oldest indexes for the repository.
+     * Failures are logged rather than thrown, as the index can always be rebuilt.
+     */
+    public void save(final URI repo, final String commitHash, final IdentifierIndex index) {
+        final File dir = getRepositoryDirectory(repo);
+        try {
+            dir.mkdirs();
+            final Properties p = new Properties();
+            for (Map.Entry<String, String> e : index.getIdentifiers().entrySet()) {
+                p.setProperty(e.getKey(), e.getValue());
+            }
+            final File tmp = File.createTempFile(commitHash, ".tmp", dir);
+            try {
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    p.store(out, repo.toString());
+                }
+                Files.move(tmp.toPath(), new File(dir, commitHash + ".properties").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to store identifier index for " + repo + " commit " + commitHash + ".", e);
+        }
+
+        final File[] indexes = dir.listFiles((d, name) -> name.endsWith(".properties"));
+        if (indexes != null && indexes.length > RETAINED) {
+            Arrays.sort(indexes, Comparator.comparingLong(File::lastModified));
+            for (int i = 0; i < indexes.length - RETAINED; i ++) {
+                indexes[i].delete();
+            }
+        }
+    }
+
+    private File getRepositoryDirectory(final URI repo) {
+        return new File(directory, Digests.sha256Hex(repo.toString()));
+    }
+}
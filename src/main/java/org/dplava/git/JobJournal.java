@@ -0,0 +1,184 @@
+package org.dplava.git;
+
+import org.apache.commons.codec.binary.Base64;
+import org.dplava.util.Environment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * An append-only journal of the commits queued for validation, so that commits that
+ * were queued or being validated when the service stopped are validated once it starts
+ * again rather than being left pending forever.
+ *
+ * Each queued job is written (and synced to disk) before it's queued in memory, and a
+ * completion entry is written once it has been validated, giving at-least-once
+ * validation of every accepted push.  When completed jobs make up most of the journal,
+ * it's rewritten with only the outstanding ones.  This class is thread-safe.
+ */
+public class JobJournal {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobJournal.class);
+
+    /**
+     * The minimum number of entries in the journal before it's considered for compaction.
+     */
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private File file;
+
+    /**
+     * The outstanding jobs, by id, in the order they were queued.
+     */
+    private Map<String, Job> outstanding = new LinkedHashMap<>();
+
+    private int entries;
+
+    public JobJournal(final File file) {
+        this.file = file;
+        read();
+    }
+
+    /**
+     * Gets a journal in the directory named by the JOB_JOURNAL_DIR environment variable,
+     * or in a subdirectory of the system temporary directory if unset.
+     */
+    public static JobJournal getDefault() {
+        return new JobJournal(new File(Environment.getString("JOB_JOURNAL_DIR", new File(System.getProperty("java.io.tmpdir"), "dplava-job-journal").getPath()), "jobs.log"));
+    }
+
+    /**
+     * Durably records a job.
+     * @return the id of the job, to be passed to {@link #complete(String)} once it's done
+     */
+    public synchronized String append(final byte[] payloadBytes, final String signature) throws IOException {
+        final Job job = new Job(UUID.randomUUID().toString(), payloadBytes, signature);
+        write("Q " + job.id + " " + signature + " " + Base64.encodeBase64String(payloadBytes) + "\n");
+        outstanding.put(job.id, job);
+        return job.id;
+    }
+
+    /**
+     * Records that a job is done, so that it won't be recovered.  Failures are logged
+     * rather than thrown, as the worst consequence is that the job is repeated.
+     */
+    public synchronized void complete(final String id) {
+        if (outstanding.remove(id) == null) {
+            return;
+        }
+        try {
+            write("D " + id + "\n");
+        } catch (IOException e) {
+            LOGGER.warn("Unable to record completion of job " + id + " in " + file.getAbsolutePath() + ".", e);
+        }
+        if (entries > COMPACTION_THRESHOLD && entries > outstanding.size() * 4) {
+            compact();
+        }
+    }
+
+    /**
+     * @return the jobs that have been recorded but not completed, in the order they were
+     *         recorded
+     */
+    public synchronized List<Job> getOutstandingJobs() {
+        return new ArrayList<>(outstanding.values());
+    }
+
+    private void write(final String entry) throws IOException {
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(entry.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        }
+        entries ++;
+    }
+
+    private void read() {
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                final String[] entry = line.split(" ");
+                if (entry.length == 4 && entry[0].equals("Q")) {
+                    outstanding.put(entry[1], new Job(entry[1], Base64.decodeBase64(entry[3]), entry[2]));
+                } else if (entry.length == 2 && entry[0].equals("D")) {
+                    outstanding.remove(entry[1]);
+                } else {
+                    // most likely a partial entry written as the service stopped
+                    LOGGER.warn("Ignoring malformed entry in " + file.getAbsolutePath() + ".");
+                    continue;
+                }
+                entries ++;
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to read job journal " + file.getAbsolutePath() + ".", e);
+        }
+        compact();
+    }
+
+    private void compact() {
+        try {
+            file.getParentFile().mkdirs();
+            final File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+            try {
+                try (FileOutputStream out = new FileOutputStream(tmp)) {
+                    for (Job job : outstanding.values()) {
+                        out.write(("Q " + job.id + " " + job.signature + " " + Base64.encodeBase64String(job.payloadBytes) + "\n").getBytes(StandardCharsets.UTF_8));
+                    }
+                    out.getFD().sync();
+                }
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                entries = outstanding.size();
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to compact job journal " + file.getAbsolutePath() + ".", e);
+        }
+    }
+
+    /**
+     * A job recorded in the journal: the raw body and signature of a push event.
+     */
+    public static class Job {
+
+        private String id;
+
+        private byte[] payloadBytes;
+
+        private String signature;
+
+        Job(final String id, final byte[] payloadBytes, final String signature) {
+            this.id = id;
+            this.payloadBytes = payloadBytes;
+            this.signature = signature;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public byte[] getPayloadBytes() {
+            return payloadBytes;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.dplava.git;
+
+import org.apache.commons.io.FileUtils;
+import org.dplava.util.Digests;
+import org.dplava.util.Environment;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RefSpec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Maintains a local bare mirror of each repository that is validated, so that
+ * validating a commit only requires fetching what has changed since the last
+ * push rather than cloning the whole history again.
+ *
+ * Fetches of each repository are serialized, but don't wait for readers: a fetch
+ * only adds objects (and moves refs, which aren't read, as commits are looked up by
+ * id), so an open Mirror sees a consistent snapshot while later commits to the same
+ * repository are fetched.  Only garbage collection, which may remove the packs a
+ * reader is using, needs the mirror to itself; it's deferred to a later fetch
+ * whenever a Mirror is open.  Each Mirror returned by update() holds a read lock
+ * until it is closed for this purpose.  The locks aren't owned by threads, so a
+ * Mirror may be closed by a different thread than opened it.
+ *
+ * This class is thread-safe.
+ */
+public class MirrorStore {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MirrorStore.class);
+
+    private static final RefSpec HEADS = new RefSpec("+refs/heads/*:refs/heads/*");
+
+    private static MirrorStore DEFAULT;
+
+    private File directory;
+
+    private int gcInterval;
+
+    private ConcurrentHashMap<String, MirrorState> states;
+
+    /**
+     * @param directory the directory in which the mirrors are stored
+     * @param gcInterval the number of fetches after which a mirror is garbage collected,
+     *                   or 0 (or less) to never garbage collect mirrors
+     */
+    public MirrorStore(final File directory, final int gcInterval) {
+        this.directory = directory;
+        this.gcInterval = gcInterval;
+        this.states = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets the shared store, configured by the MIRROR_DIR and MIRROR_GC_INTERVAL
+     * environment variables.
+     */
+    public static synchronized MirrorStore getDefault() {
+        if (DEFAULT == null) {
+            DEFAULT = new MirrorStore(new File(Environment.getString("MIRROR_DIR", new File(System.getProperty("java.io.tmpdir"), "dplava-mirrors").getPath())),
+                    Environment.getInt("MIRROR_GC_INTERVAL", 50));
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Brings the mirror of the given repository up to date (creating it if necessary)
+     * and returns it.  The returned Mirror must be closed when no longer needed.
+     */
+    public Mirror update(final URI repo) throws GitAPIException, IOException {
+        final String key = repo.toString();
+        final MirrorState state = states.computeIfAbsent(key, k -> new MirrorState());
+        final File mirrorDir = new File(directory, Digests.sha256Hex(key) + ".git");
+
+        synchronized (state) {
+            final long start = System.currentTimeMillis();
+            if (!new File(mirrorDir, "objects").isDirectory()) {
+                FileUtils.deleteDirectory(mirrorDir);
+                Git.cloneRepository().setURI(key).setDirectory(mirrorDir).setBare(true).setCloneAllBranches(true).call().close();
+                LOGGER.debug("Created mirror of " + key + " in " + RepositoryCommitValidator.timeSince(start) + ".");
+            } else {
+                try (Git git = Git.open(mirrorDir)) {
+                    git.fetch().setRemote(key).setRefSpecs(HEADS).setRemoveDeletedRefs(true).call();
+                    LOGGER.debug("Fetched " + key + " into mirror in " + RepositoryCommitValidator.timeSince(start) + ".");
+                    if (gcInterval > 0 && ++ state.fetchesSinceGc >= gcInterval) {
+                        collectGarbage(key, git, state);
+                    }
+                }
+            }
+        }
+
+        // only waits for a garbage collection in progress
+        final long stamp = state.readers.readLock();
+        try {
+            return new Mirror(mirrorDir, Git.open(mirrorDir), state.readers, stamp);
+        } catch (IOException | RuntimeException e) {
+            state.readers.unlockRead(stamp);
+            throw e;
+        }
+    }
+
+    /**
+     * Garbage collects a mirror unless it's being read, in which case it's left to the
+     * next fetch.  Must be called while synchronized on the MirrorState.
+     */
+    private void collectGarbage(final String key, final Git git, final MirrorState state) throws GitAPIException {
+        final long stamp = state.readers.tryWriteLock();
+        if (stamp == 0) {
+            LOGGER.debug("Deferred garbage collection of mirror of " + key + " as it's being read.");
+            return;
+        }
+        try {
+            final long gcStart = System.currentTimeMillis();
+            git.gc().call();
+            state.fetchesSinceGc = 0;
+            LOGGER.debug("Garbage collected mirror of " + key + " in " + RepositoryCommitValidator.timeSince(gcStart) + ".");
+        } finally {
+            state.readers.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * The locks and fetch count for a single mirror.  Fetches synchronize on this.
+     */
+    private static class MirrorState {
+
+        /**
+         * Held for reading by each open Mirror, and for writing during garbage collection.
+         */
+        private final StampedLock readers = new StampedLock();
+
+        private int fetchesSinceGc;
+    }
+
+    /**
+     * An up-to-date mirror of a repository, which won't be modified until closed.
+     */
+    public static class Mirror implements AutoCloseable {
+
+        private File directory;
+
+        private Git git;
+
+        private StampedLock lock;
+
+        private long stamp;
+
+        private Mirror(File directory, Git git, StampedLock lock, long stamp) {
+            this.directory = directory;
+            this.git = git;
+            this.lock = lock;
+            this.stamp = stamp;
+        }
+
+        public File getDirectory() {
+            return directory;
+        }
+
+        public Repository getRepository() {
+            return git.getRepository();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (git != null) {
+                git.close();
+                git = null;
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+}
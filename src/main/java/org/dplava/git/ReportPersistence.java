@@ -1,5 +1,7 @@
 package org.dplava.git;
 
+import org.dplava.validation.ErrorAggregator;
+
 import java.io.IOException;
 import java.net.URI;
 
@@ -23,4 +25,14 @@ public interface ReportPersistence {
      */
     public String writeFailureReport(GithubPayload payload, final String report) throws IOException;
 
+    /**
+     * Writes a failure report listing the given errors.  Implementations should override
+     * this to stream the report from the errors rather than build it in memory.
+     * @return the URL at which the report can henceforth be retrieved
+     * @throws IOException if an error occurs while persisting the report.
+     */
+    public default String writeFailureReport(GithubPayload payload, final ErrorAggregator errors) throws IOException {
+        return writeFailureReport(payload, errors.getErrors());
+    }
+
 }
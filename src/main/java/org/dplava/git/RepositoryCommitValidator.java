@@ -1,42 +1,61 @@
 package org.dplava.git;
 
-import org.apache.commons.io.FileUtils;
+import org.dplava.util.Environment;
+import org.dplava.util.Metrics;
+import org.dplava.util.ThreadPools;
 import org.dplava.validation.DPLAVAMetadataValidator;
 import org.dplava.validation.ErrorAggregator;
+import org.dplava.validation.ParallelFileValidator;
+import org.dplava.validation.RecordFacts;
+import org.dplava.validation.RecordSource;
+import org.dplava.validation.TerminationPolicy;
+import org.dplava.validation.ValidationResultCache;
+import org.dplava.validation.ValidatorService;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.diff.DiffEntry;
 import org.eclipse.jgit.diff.DiffFormatter;
 import org.eclipse.jgit.diff.RawTextComparator;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
-import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
 import org.eclipse.jgit.util.io.DisabledOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
-import java.io.File;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-
 /**
  * Encapsulates logic to perform validation on the necessary files for commits
  * to a single github repository.
@@ -48,105 +67,489 @@ public class RepositoryCommitValidator {
     private static Set<String> validatedRepositories = new HashSet<String>();
     
     /**
+     * The commits waiting to be validated, queued separately for each repository.
      * Synchronize on this in order to access either queuedCommits or runningCommits.
      */
-    private Queue<CommitValidator> queuedCommits;
+    private Map<URI, LinkedList<CommitValidator>> queuedCommits;
 
     private List<CommitValidator> runningCommits;
-    
+
+    /**
+     * Numbers the queued commits, so that the longest waiting can be found.
+     */
+    private long queuedCount;
+
     private int maxWorkerCount;
 
-    private List<Worker> workers;
+    private int defaultRepositoryConcurrency;
+
+    /**
+     * The number of commits that may be validated at once for particular repositories
+     * (by "owner/name"), overriding defaultRepositoryConcurrency.
+     */
+    private Map<String, Integer> repositoryConcurrency;
+
+    /**
+     * The stages through which each commit passes, each with its own threads, so that
+     * one commit's files can be validated while others are being fetched or reported.
+     * The stages that mostly wait on the network (fetching, which also reports the commit
+     * as pending, and reporting) have as many threads as they need, while the others have
+     * a fixed number of threads.  The only backpressure is admission in dispatch(), which
+     * never lets more than maxWorkerCount commits into the pipeline, so no stage's queue
+     * can hold more than that many tasks.
+     */
+    private ExecutorService fetchStage;
+
+    private ExecutorService diffStage;
+
+    private ExecutorService validateStage;
+
+    private ExecutorService checkStage;
+
+    private ExecutorService reportStage;
+
+    private boolean shutdown;
 
     private ReportPersistence reports;
-    
-    private DocumentBuilder builder;
+
+    /**
+     * Validates the individual files of a commit in parallel.  This is shared by
+     * all workers so that the number of threads doing CPU-bound validation stays
+     * bounded regardless of how many commits are being validated at once.
+     */
+    private ParallelFileValidator fileValidator;
+
+    /**
+     * When to stop validating the files of a commit that is clearly broken, freeing
+     * the pool for other commits.
+     */
+    private TerminationPolicy terminationPolicy;
+
+    private ValidatorService validators;
+
+    private IdentifierIndexStore identifierIndexes;
+
+    private MirrorStore mirrors;
+
+    private CommitStatusIndex statuses;
+
+    private JobJournal journal;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RepositoryCommitValidator.class);
 
+    private static final Metrics METRICS = Metrics.getDefault();
+
+    private static final Metrics.Histogram QUEUE_WAIT = METRICS.histogram("dplava_commit_queue_wait_seconds", "Time commits spent queued before validation began.");
+
+    private static final Metrics.Histogram MIRROR_UPDATE = METRICS.histogram("dplava_mirror_update_seconds", "Time spent cloning or fetching repository mirrors.");
+
+    private static final Metrics.Histogram DIFF = METRICS.histogram("dplava_commit_diff_seconds", "Time spent finding the last valid commit and the files to validate.");
+
+    private static final Metrics.Histogram VALIDATE = METRICS.histogram("dplava_commit_validation_seconds", "Time spent validating the files of each commit.");
+
+    private static final Metrics.Histogram IDENTIFIER_CHECK = METRICS.histogram("dplava_identifier_check_seconds", "Time spent checking commits for duplicate identifiers.");
+
+    private static final Metrics.Histogram COMMIT = METRICS.histogram("dplava_commit_seconds", "Time from queuing each commit until its result was reported.");
+
     public RepositoryCommitValidator(final int maxWorkerCount, final ReportPersistence reports) {
-        queuedCommits = new LinkedList<>();
+        this(maxWorkerCount, ForkJoinPool.commonPool(), new ValidatorService(), reports);
+    }
+
+    /**
+     * @param maxWorkerCount the maximum number of commits that will be in the validation pipeline at once
+     * @param validationPool the pool in which individual files will be validated
+     * @param validators the source of the (shared) DPLAVAMetadataValidator
+     * @param reports the ReportPersistence to which failure reports are written
+     */
+    public RepositoryCommitValidator(final int maxWorkerCount, final ForkJoinPool validationPool, final ValidatorService validators, final ReportPersistence reports) {
+        this(maxWorkerCount, validationPool, validators, reports, null);
+    }
+
+    /**
+     * @param maxWorkerCount the maximum number of commits that will be in the validation pipeline at once
+     * @param validationPool the pool in which individual files will be validated
+     * @param validators the source of the (shared) DPLAVAMetadataValidator
+     * @param reports the ReportPersistence to which failure reports are written
+     * @param journal the JobJournal in which queued commits are recorded until validated,
+     *                or null if they needn't survive a restart
+     */
+    public RepositoryCommitValidator(final int maxWorkerCount, final ForkJoinPool validationPool, final ValidatorService validators, final ReportPersistence reports, final JobJournal journal) {
+        this(maxWorkerCount, validationPool, validators, reports, journal, MirrorStore.getDefault(), CommitStatusIndex.getDefault(),
+                IdentifierIndexStore.getDefault(), ValidationResultCache.getDefault());
+    }
+
+    /**
+     * Creates a RepositoryCommitValidator that keeps its mirrors, statuses, identifier
+     * indexes and cached results in the given stores rather than the default ones.
+     */
+    RepositoryCommitValidator(final int maxWorkerCount, final ForkJoinPool validationPool, final ValidatorService validators, final ReportPersistence reports, final JobJournal journal,
+                              final MirrorStore mirrors, final CommitStatusIndex statuses, final IdentifierIndexStore identifierIndexes, final ValidationResultCache resultCache) {
+        queuedCommits = new LinkedHashMap<>();
         runningCommits = new ArrayList<>();
-        workers = new ArrayList<>();
+        final int stageThreads = Math.max(1, Environment.getInt("PIPELINE_STAGE_THREADS", (maxWorkerCount + 1) / 2));
+        fetchStage = ThreadPools.newIoExecutor("fetch-stage");
+        diffStage = ThreadPools.newFixedExecutor("diff-stage", stageThreads);
+        validateStage = ThreadPools.newFixedExecutor("validate-stage", stageThreads);
+        checkStage = ThreadPools.newFixedExecutor("check-stage", stageThreads);
+        reportStage = ThreadPools.newIoExecutor("report-stage");
         this.maxWorkerCount = maxWorkerCount;
         if (maxWorkerCount < 1) {
             throw new IllegalArgumentException("maxWorkerCount must be greater than 0");
         }
         this.reports = reports;
-        
-        try {
-            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException("Error instantiating DocumentBuilder.");
+        this.fileValidator = new ParallelFileValidator(validationPool, resultCache);
+        this.terminationPolicy = TerminationPolicy.fromEnvironment();
+        this.validators = validators;
+        this.identifierIndexes = identifierIndexes;
+        this.mirrors = mirrors;
+        this.statuses = statuses;
+        this.journal = journal;
+        this.defaultRepositoryConcurrency = Environment.getInt("REPOSITORY_CONCURRENCY", 1);
+        this.repositoryConcurrency = parseRepositoryConcurrency(Environment.getString("REPOSITORY_CONCURRENCY_OVERRIDES", ""));
+        METRICS.gauge("dplava_queued_commits", "Commits waiting to be validated.", () -> getCommitCount(false));
+        METRICS.gauge("dplava_running_commits", "Commits being validated.", () -> getCommitCount(true));
+        METRICS.gauge("dplava_worker_utilization", "The fraction of the commit validation workers in use.", () -> getCommitCount(true) / (double) maxWorkerCount);
+    }
+
+    void setTerminationPolicy(final TerminationPolicy terminationPolicy) {
+        this.terminationPolicy = terminationPolicy;
+    }
+
+    private int getCommitCount(final boolean running) {
+        synchronized (queuedCommits) {
+            return running ? runningCommits.size() : queuedCommits.values().stream().mapToInt(List::size).sum();
+        }
+    }
+
+    /**
+     * Parses a comma-separated list of "owner/name=concurrency" pairs.
+     */
+    static Map<String, Integer> parseRepositoryConcurrency(final String overrides) {
+        final Map<String, Integer> result = new HashMap<>();
+        for (String override : overrides.split(",")) {
+            final String[] pair = override.split("=");
+            if (pair.length == 2) {
+                try {
+                    result.put(pair[0].trim().replaceAll("^/+|/+$", ""), Integer.parseInt(pair[1].trim()));
+                } catch (NumberFormatException e) {
+                    LOGGER.warn("Ignoring unparsible repository concurrency \"" + override + "\".");
+                }
+            } else if (!override.trim().isEmpty()) {
+                LOGGER.warn("Ignoring unparsible repository concurrency \"" + override + "\".");
+            }
         }
+        return result;
     }
 
 
 
     /**
      * Asynchronously validates an individual commit and then runs the passed ResultReporter with the
-     * result of the validation operation.
+     * result of the validation operation.  This returns immediately without making any requests;
+     * the commit is reported as pending once a worker starts validating it.  After shutdown() the
+     * commit is only recorded in the JobJournal, to be validated when the service next starts.
      * @param registry the ValidityRegistry to receive notifications about the validity status of the commit
+     *                 (which are also recorded in the local CommitStatusIndex)
+     * @return a future that completes once the commit has been validated (or skipped)
      */
-    public void queueForValidation(GithubPayload payload, final ValidityRegistry registry) throws IOException {
+    public CompletableFuture<Void> queueForValidation(GithubPayload payload, final ValidityRegistry registry) throws IOException {
         LOGGER.trace(payload.getCommitHash() + " " + payload.getRepository());
-        final CommitValidator v = new CommitValidator(payload, registry);
-        synchronized (queuedCommits) {
-            queuedCommits.add(v);
-        }
-        considerAddingWorker();
+        final String jobId = journal == null ? null : journal.append(payload.getPayloadBytes(), payload.getSignature());
+        return queue(new CommitValidator(payload, statuses.wrap(registry), jobId));
     }
 
-    private void considerAddingWorker() {
-        synchronized (workers) {
-            if (workers.size() < maxWorkerCount) {
-                Worker w = new Worker();
-                workers.add(w);
-                w.start();
+    /**
+     * Queues every commit that was recorded in the JobJournal but not validated before
+     * the service last stopped, including those that were being validated at the time.
+     */
+    public void recover(final ValidityRegistry registry) {
+        if (journal == null) {
+            return;
+        }
+        for (JobJournal.Job job : journal.getOutstandingJobs()) {
+            try {
+                final GithubPayload payload = new GithubPayload(job.getPayloadBytes(), job.getSignature());
+                LOGGER.info("Recovered queued validation of " + payload.getRepository().getPath() + " commit " + payload.getCommitHash() + ".");
+                queue(new CommitValidator(payload, statuses.wrap(registry), job.getId()));
+            } catch (RuntimeException e) {
+                LOGGER.error("Discarding unreadable job " + job.getId() + " from the journal.", e);
+                journal.complete(job.getId());
             }
         }
     }
 
-    public void waitFor(final URI repo, final String commitHash) throws InterruptedException {
-        while (isValidatingCommit(repo, commitHash)) {
-            Thread.sleep(100);
+    /**
+     * Queues a commit, first coalescing any commits that it supersedes: those that were
+     * pushed to the same branch immediately before it.  Superseded commits that haven't
+     * started are dropped and reported as superseded (on the report stage, so that the
+     * scheduler isn't held up by the request or by the journal), and only then marked
+     * done in the journal, so that a crash in between leaves them to be recovered.  Those
+     * being validated are abandoned and reported as superseded at the next opportunity.
+     * Only the newest commit matters, as it's validated against the last valid commit
+     * regardless of those in between.
+     */
+    private CompletableFuture<Void> queue(final CommitValidator v) {
+        final URI repo = v.payload.getRepository();
+        v.incremental = isLikelyIncremental(v.payload);
+        final List<CommitValidator> skipped = new ArrayList<>();
+        synchronized (queuedCommits) {
+            if (shutdown) {
+                LOGGER.info("Not queuing " + repo.getPath() + " commit " + v.payload.getCommitHash() + " during shutdown.");
+                v.completion.complete(null);
+                return v.completion;
+            }
+            final LinkedList<CommitValidator> repoQueue = queuedCommits.computeIfAbsent(repo, r -> new LinkedList<>());
+            for (Iterator<CommitValidator> it = repoQueue.iterator(); it.hasNext(); ) {
+                final CommitValidator queued = it.next();
+                if (v.supersedes(queued)) {
+                    LOGGER.info("Skipping " + repo.getPath() + " commit " + queued.payload.getCommitHash() + ", superseded by " + v.payload.getCommitHash() + ".");
+                    it.remove();
+                    skipped.add(queued);
+                    METRICS.counter("dplava_commits_total", "Commits validated, by result.", "result", "skipped").increment();
+                }
+            }
+            for (CommitValidator running : runningCommits) {
+                if (v.supersedes(running)) {
+                    LOGGER.info("Abandoning " + repo.getPath() + " commit " + running.payload.getCommitHash() + ", superseded by " + v.payload.getCommitHash() + ".");
+                    running.superseded = true;
+                }
+            }
+            v.sequence = queuedCount ++;
+            repoQueue.add(v);
+        }
+        for (CommitValidator queued : skipped) {
+            try {
+                reportStage.execute(() -> {
+                    try {
+                        queued.registry.reportCommitSuperseded(queued.payload);
+                    } catch (IOException | RuntimeException e) {
+                        LOGGER.warn("Unable to report " + repo.getPath() + " commit " + queued.payload.getCommitHash() + " as superseded.", e);
+                    } finally {
+                        try {
+                            if (queued.jobId != null) {
+                                journal.complete(queued.jobId);
+                            }
+                        } finally {
+                            queued.completion.complete(null);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // shut down since the commit was skipped, so it's left in the journal
+                queued.completion.complete(null);
+            }
         }
+        dispatch();
+        return v.completion;
     }
 
-    private boolean isValidatingCommit(URI repo, String commitHash) {
-        synchronized (queuedCommits) {
-            return Stream.concat(queuedCommits.stream(), runningCommits.stream()).anyMatch(v -> {
-                return v.payload.getRepository().equals(repo) && v.payload.getCommitHash().equals(commitHash);
-            });
+    /**
+     * Guesses whether validating the given push will only require validating the files
+     * changed since the previous commit, which is so if that commit is known to be valid
+     * and the repository has already been fully validated by this deployment.
+     */
+    private boolean isLikelyIncremental(final GithubPayload payload) {
+        final String previous = payload.getPreviousCommitHash();
+        return previous != null
+                && ValidityRegistry.SUCCESS.equals(statuses.get(payload.getRepository(), previous))
+                && hasThisDeployedVersionValidatedRepository(payload.getRepository().toString());
+    }
+
+    /**
+     * Chooses the next commit to validate, or null if none may be started now.  Commits
+     * to each repository are taken in the order they were queued, and no repository may
+     * have more commits being validated than its configured concurrency.  Among the
+     * repositories with commits waiting:
+     * <ul>
+     *     <li>likely incremental validations are preferred over full scans, and full scans
+     *     may never occupy every worker, so that small pushes aren't held up by large ones</li>
+     *     <li>then the repository using the smallest share of its concurrency is preferred</li>
+     *     <li>then the commit that has waited the longest</li>
+     * </ul>
+     * Must be called while synchronized on queuedCommits.
+     */
+    private CommitValidator next() {
+        final Map<URI, Integer> running = new HashMap<>();
+        int fullScans = 0;
+        for (CommitValidator v : runningCommits) {
+            running.merge(v.payload.getRepository(), 1, Integer::sum);
+            if (!v.incremental) {
+                fullScans ++;
+            }
+        }
+        final int maxFullScans = Math.max(1, maxWorkerCount - 1);
+        CommitValidator best = null;
+        double bestShare = 0;
+        for (Map.Entry<URI, LinkedList<CommitValidator>> entry : queuedCommits.entrySet()) {
+            final CommitValidator candidate = entry.getValue().peek();
+            final int concurrency = getRepositoryConcurrency(entry.getKey());
+            final int repoRunning = running.getOrDefault(entry.getKey(), 0);
+            if (candidate == null || repoRunning >= concurrency || (!candidate.incremental && fullScans >= maxFullScans)) {
+                continue;
+            }
+            final double share = (double) repoRunning / concurrency;
+            if (best == null
+                    || (candidate.incremental && !best.incremental)
+                    || (candidate.incremental == best.incremental && (share < bestShare || (share == bestShare && candidate.sequence < best.sequence)))) {
+                best = candidate;
+                bestShare = share;
+            }
+        }
+        if (best != null) {
+            final LinkedList<CommitValidator> repoQueue = queuedCommits.get(best.payload.getRepository());
+            repoQueue.remove();
+            if (repoQueue.isEmpty()) {
+                queuedCommits.remove(best.payload.getRepository());
+            }
         }
+        return best;
     }
 
-    private class Worker extends Thread {
+    /**
+     * Gets the number of commits to the given repository that may be validated at once.
+     */
+    private int getRepositoryConcurrency(final URI repo) {
+        final String path = repo.getPath().replaceAll("^/+|/+$", "");
+        return Math.max(1, repositoryConcurrency.getOrDefault(path, defaultRepositoryConcurrency));
+    }
 
-        public void run() {
-            LOGGER.info("Worker started (" + Thread.currentThread().getName() + ")");
-            for (CommitValidator v = takeWork() ; v != null ; v = takeWork()) {
-                v.run();
-                synchronized (queuedCommits) {
-                   runningCommits.remove(v);
+    /**
+     * Starts as many of the queued commits as the scheduling rules allow, up to
+     * maxWorkerCount in the pipeline at once.  The commits are chosen while holding the
+     * lock on queuedCommits, but submitted to the pipeline after releasing it.
+     */
+    private void dispatch() {
+        final List<CommitValidator> started = new ArrayList<>();
+        synchronized (queuedCommits) {
+            if (shutdown) {
+                return;
+            }
+            while (runningCommits.size() < maxWorkerCount) {
+                final CommitValidator v = next();
+                if (v == null) {
+                    break;
                 }
+                runningCommits.add(v);
+                QUEUE_WAIT.observeSince(v.queuedAt);
+                started.add(v);
             }
-            synchronized(workers) {
-                workers.remove(this);
+        }
+        for (CommitValidator v : started) {
+            try {
+                runCommit(v);
+            } catch (RejectedExecutionException e) {
+                // shut down since the commit was chosen, so it's left in the journal
+                v.completion.complete(null);
             }
-
-            LOGGER.info("Worker stopped (" + Thread.currentThread().getName() + ")");
         }
+    }
+
+    /**
+     * Passes the commit through each stage of the pipeline in turn.
+     */
+    private void runCommit(final CommitValidator v) {
+        CompletableFuture.runAsync(stage(v::fetch), fetchStage)
+                .thenRunAsync(stage(v::diff), diffStage)
+                .thenRunAsync(stage(v::validate), validateStage)
+                .thenRunAsync(stage(v::checkRecords), checkStage)
+                .thenRunAsync(stage(v::report), reportStage)
+                .whenCompleteAsync((result, t) -> {
+                    try {
+                        if (t != null) {
+                            v.fail(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                        }
+                        v.closeMirror();
+                        v.closeErrors();
+                        if (v.jobId != null) {
+                            journal.complete(v.jobId);
+                        }
+                    } finally {
+                        synchronized (queuedCommits) {
+                            runningCommits.remove(v);
+                        }
+                        v.completion.complete(null);
+                        COMMIT.observeSince(v.queuedAt);
+                        METRICS.counter("dplava_commits_total", "Commits validated, by result.", "result", v.result).increment();
+                        dispatch();
+                    }
+                }, reportStage);
+    }
+
+    /**
+     * A stage of the pipeline, which may throw any exception.
+     */
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private static Runnable stage(final Stage stage) {
+        return () -> {
+            try {
+                stage.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        };
+    }
 
-        private CommitValidator takeWork() {
-            synchronized (queuedCommits) {
-                final CommitValidator v =  queuedCommits.poll();
-                if (v != null)
-                    runningCommits.add(v);
-                return v;
+    /**
+     * Blocks until the given commit is no longer queued or being validated.
+     */
+    public void waitFor(final URI repo, final String commitHash) throws InterruptedException {
+        final List<CompletableFuture<Void>> pending = new ArrayList<>();
+        synchronized (queuedCommits) {
+            Stream.concat(queuedCommits.values().stream().flatMap(List::stream), runningCommits.stream()).filter(v -> {
+                return v.payload.getRepository().equals(repo) && v.payload.getCommitHash().equals(commitHash);
+            }).forEach(v -> pending.add(v.completion));
+        }
+        for (CompletableFuture<Void> f : pending) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                // validation failures are reported through the ValidityRegistry
             }
         }
+    }
 
+    /**
+     * Stops starting new validations and waits up to the given time for those in progress
+     * to finish.  Commits still queued (or unfinished), and any queued later, remain in the
+     * JobJournal, if there is one, to be recovered when the service next starts; their
+     * futures are completed so that nothing waits on them.
+     * @return true if every validation in progress finished
+     */
+    public boolean shutdown(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final List<CompletableFuture<Void>> running = new ArrayList<>();
+        final List<CommitValidator> queued = new ArrayList<>();
+        synchronized (queuedCommits) {
+            shutdown = true;
+            for (CommitValidator v : runningCommits) {
+                running.add(v.completion);
+            }
+            for (List<CommitValidator> repoQueue : queuedCommits.values()) {
+                queued.addAll(repoQueue);
+            }
+            queuedCommits.clear();
+        }
+        for (CommitValidator v : queued) {
+            v.completion.complete(null);
+        }
+        boolean finished = true;
+        try {
+            CompletableFuture.allOf(running.toArray(new CompletableFuture[0])).get(timeout, unit);
+        } catch (TimeoutException e) {
+            LOGGER.warn("Shut down with validations still in progress; they will be repeated on restart.");
+            finished = false;
+        } catch (ExecutionException e) {
+            // failures have already been reported
+        }
+        for (ExecutorService stage : Arrays.asList(fetchStage, diffStage, validateStage, checkStage, reportStage)) {
+            stage.shutdownNow();
+        }
+        for (CompletableFuture<Void> f : running) {
+            f.complete(null);
+        }
+        return finished;
     }
 
     public class CommitValidator implements Runnable {
@@ -155,135 +558,388 @@ public class RepositoryCommitValidator {
         
         private GithubPayload payload;
 
-        public CommitValidator(GithubPayload payload, ValidityRegistry registry) throws IOException {
+        private String jobId;
+
+        /**
+         * Set when a later push to the same branch is queued, after which this validation
+         * is abandoned.
+         */
+        private volatile boolean superseded;
+
+        /**
+         * Whether this is expected to validate only the changes since the last valid commit.
+         */
+        private boolean incremental;
+
+        private long sequence;
+
+        private CompletableFuture<Void> completion = new CompletableFuture<>();
+
+        private final long queuedAt = System.currentTimeMillis();
+
+        /**
+         * How the validation ended ("valid", "invalid", "superseded" or "error"; commits
+         * superseded before they started are counted as "skipped"), for metrics.
+         */
+        private volatile String result = "error";
+
+        /**
+         * Set once the result has been (or is being) reported, or the validation has been
+         * abandoned, after which any remaining stages do nothing.
+         */
+        private volatile boolean finished;
+
+        // the state passed from each stage to the next
+
+        private MirrorStore.Mirror mirror;
+
+        private RevCommit current;
+
+        private RevCommit previous;
+
+        private List<DiffEntry> diffs;
+
+        private final List<RecordSource> records = new ArrayList<>();
+
+        private final Map<String, RecordFacts> facts = new HashMap<>();
+
+        /**
+         * The errors found, which are spilled to disk once validation starts so that a
+         * commit with a great many errors doesn't exhaust the heap.
+         */
+        private ErrorAggregator errors = new ErrorAggregator();
+
+        /**
+         * The declared version of the rule set the files were validated against, if any.
+         */
+        private String ruleSetVersion;
+
+        public CommitValidator(GithubPayload payload, ValidityRegistry registry) {
+            this(payload, registry, null);
+        }
+
+        CommitValidator(GithubPayload payload, ValidityRegistry registry, String jobId) {
             this.payload = payload;
             this.registry = registry;
-            registry.reportCommitPending(payload);
+            this.jobId = jobId;
+        }
+
+        /**
+         * @return true if the given commit was pushed to the same branch immediately before
+         *         this one (so that this one makes validating it pointless)
+         */
+        private boolean supersedes(final CommitValidator other) {
+            return payload.getRepository().equals(other.payload.getRepository())
+                    && payload.getRef().equals(other.payload.getRef())
+                    && other.payload.getCommitHash().equals(payload.getPreviousCommitHash());
         }
 
+        /**
+         * Checks whether this validation has been superseded, reporting it as such if so.
+         * @return true if the validation should be abandoned
+         */
+        private boolean abandonIfSuperseded() throws IOException {
+            if (finished) {
+                return true;
+            }
+            if (superseded) {
+                finished = true;
+                LOGGER.info("Abandoned validation of " + payload.getRepository().getPath() + " commit " + payload.getCommitHash() + ".");
+                result = "superseded";
+                registry.reportCommitSuperseded(payload);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Validates the commit by running every stage in turn on the current thread.
+         */
         @Override
         public void run() {
-            File gitDir = null;
             try {
-                // clone the repo
-                long start = System.currentTimeMillis();
-                gitDir = File.createTempFile(URLEncoder.encode(payload.getRepository().getPath(), "UTF-8"), "cloned-git-repo");
-                gitDir.delete();
-                Git git = Git.cloneRepository()
-                        .setURI(payload.getRepository().toString())
-                        .setDirectory(gitDir)
-                        .call();
-                LOGGER.debug("Cloned " + payload.getRepository().toString() + " in " + timeSince(start) + ".");
-
-                // check out the commit
-                git.checkout().setName(payload.getCommitHash()).call();
-
-                // determine the last valid commit
-                Iterator<RevCommit> revisions = git.log().call().iterator();
-                final RevCommit current = revisions.next();
-                RevCommit previous = null;
-                while (revisions.hasNext()) {
-                    previous = revisions.next();
-                    final String previousCommitStatus = registry.getCommitStatus(payload.getRepository(), previous.getName());
-                    if (previousCommitStatus != null && previousCommitStatus.equals(ValidityRegistry.SUCCESS)) {
-                        break;
-                    } else {
-                        previous = null;
+                fetch();
+                diff();
+                validate();
+                checkRecords();
+                report();
+            } catch (Throwable t) {
+                fail(t);
+            } finally {
+                closeMirror();
+                closeErrors();
+            }
+        }
+
+        /**
+         * The first stage: reports the commit as pending, and updates the local mirror
+         * of the repository, from which the commit is then read directly.
+         */
+        void fetch() throws IOException, GitAPIException {
+            // the pending status is posted here, rather than when the commit is queued, so
+            // that queuing never waits on github
+            try {
+                registry.reportCommitPending(payload);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Unable to report " + payload.getRepository().getPath() + " commit " + payload.getCommitHash() + " as pending.", e);
+            }
+            final long start = System.currentTimeMillis();
+            mirror = mirrors.update(payload.getRepository());
+            MIRROR_UPDATE.observeSince(start);
+            LOGGER.debug("Updated mirror of " + payload.getRepository().toString() + " in " + timeSince(start) + ".");
+        }
+
+        /**
+         * The second stage: finds the last valid commit and the files that must be
+         * validated.
+         */
+        void diff() throws IOException, GitAPIException {
+            final Repository repo = mirror.getRepository();
+            final ObjectId commitId = repo.resolve(payload.getCommitHash());
+            if (commitId == null) {
+                throw new IOException("Commit " + payload.getCommitHash() + " not found in " + payload.getRepository() + ".");
+            }
+
+            // determine the last valid commit
+            final long diffStart = System.currentTimeMillis();
+            long start = diffStart;
+            current = repo.parseCommit(commitId);
+            previous = findLastValidCommit(repo, current);
+            LOGGER.debug("Found last valid commit (" + (previous == null ? "none" : previous.getName()) + ") in " + timeSince(start) + ".");
+
+            if (previous == null || !RepositoryCommitValidator.hasThisDeployedVersionValidatedRepositoryYet(payload.getRepository().toString())) {
+                // no valid commit in the history: validate every file (YUCK!)
+                start = System.currentTimeMillis();
+                for (GitBlobRecord record : findFiles(repo, current)) {
+                    if (shouldValidate(record.getPath())) {
+                        records.add(record);
                     }
                 }
-
-                final ErrorAggregator errors = new ErrorAggregator();
-
-                if (previous == null || !RepositoryCommitValidator.hasThisDeployedVersionValidatedRepositoryYet(payload.getRepository().toString())) {
-                    // no valid commit in the history: validate every file (YUCK!)
-                    start = System.currentTimeMillis();
-                    final long count = validateFileFromGitDir(gitDir, new DPLAVAMetadataValidator(), errors);
-                    LOGGER.debug("Validated every XML file (" + count + ") in " + timeSince(start) + ".");
-                } else {
-                    start = System.currentTimeMillis();
-                    // if previous valid commit was found, just validate the changes
-                    DPLAVAMetadataValidator v = new DPLAVAMetadataValidator();
-
-                    RevWalk rw = new RevWalk(git.getRepository());
-                    DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE);
-                    df.setRepository(git.getRepository());
-                    df.setDiffComparator(RawTextComparator.DEFAULT);
-                    df.setDetectRenames(true);
-                    long count = 0;
-                    List<DiffEntry> diffs = df.scan(previous.getTree(), current.getTree());
-                    for (DiffEntry diff : diffs) {
-                        if (diff.getChangeType().equals(DiffEntry.ChangeType.ADD) || diff.getChangeType().equals(DiffEntry.ChangeType.MODIFY)) {
-                            final File file = new File(gitDir, diff.getNewPath());
-                            LOGGER.trace("Validating " + file.getAbsolutePath());
-                            v.validateFile(file, errors);
-                            count ++;
-                        }
+                LOGGER.debug("Found every XML file (" + records.size() + ") in " + timeSince(start) + ".");
+            } else {
+                start = System.currentTimeMillis();
+                // if previous valid commit was found, just validate the changes
+                DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE);
+                df.setRepository(repo);
+                df.setDiffComparator(RawTextComparator.DEFAULT);
+                df.setDetectRenames(true);
+                diffs = df.scan(previous.getTree(), current.getTree());
+                for (DiffEntry diff : diffs) {
+                    if (!diff.getChangeType().equals(DiffEntry.ChangeType.DELETE) && shouldValidate(diff.getNewPath())) {
+                        records.add(new GitBlobRecord(repo, diff.getNewPath(), diff.getNewId().toObjectId()));
                     }
-                    LOGGER.debug("Validated changed XML files (" + count + ") since last valid commit in " + timeSince(start) + ".");
                 }
+                LOGGER.debug("Found changed XML files (" + records.size() + ") since last valid commit in " + timeSince(start) + ".");
+            }
+            DIFF.observeSince(diffStart);
+        }
 
-                //make sure all files have unique IDs
-                if (errors.isValid()) {
-                    start = System.currentTimeMillis();
-                    checkIdentifiers(new HashMap<String, String>(), null, gitDir, errors);
-                    LOGGER.debug("Checked XML files for duplicate IDs in " + timeSince(start) + ".");
+        /**
+         * The third stage: validates each file (in the shared validation pool).
+         */
+        void validate() throws IOException, ParserConfigurationException, TransformerException, SAXException {
+            if (abandonIfSuperseded()) {
+                return;
+            }
+            final long start = System.currentTimeMillis();
+            final DPLAVAMetadataValidator v = validators.getValidator();
+            ruleSetVersion = v.getRuleSetVersion();
+            try {
+                errors = ErrorAggregator.spilling();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to spill errors to disk; holding them in memory.", e);
+            }
+            final List<RecordFacts> validatedFacts = fileValidator.validateRecords(v, records, errors, terminationPolicy);
+            for (int i = 0; i < records.size(); i ++) {
+                if (validatedFacts.get(i) != null) {
+                    facts.put(records.get(i).getPath(), validatedFacts.get(i));
                 }
-                
-                if (errors.isValid()) {
-                    registry.reportCommitValid(payload);
+            }
+            VALIDATE.observeSince(start);
+            LOGGER.debug("Validated XML files (" + records.size() + ") in " + timeSince(start) + ".");
+        }
 
-                } else {
-                    try {
-                        final String reportUrl = reports.writeFailureReport(payload, errors.getErrors());
-                        registry.reportCommitInvalid(payload, reportUrl);
-                    } catch (IOException e) {
-                        registry.reportCommitInvalid(payload, null);
-                        throw new IOException(e);
-                    }                    
+        /**
+         * The fourth stage: makes sure all files have unique IDs, after which the mirror
+         * is no longer needed.
+         */
+        void checkRecords() throws IOException {
+            if (!finished && errors.isValid()) {
+                final long start = System.currentTimeMillis();
+                final IdentifierIndex ids = checkIdentifiers(mirror.getRepository(), current, diffs == null ? null : previous, diffs, facts, errors);
+                if (errors.isValid()) {
+                    identifierIndexes.save(payload.getRepository(), payload.getCommitHash(), ids);
                 }
-                return;
+                IDENTIFIER_CHECK.observeSince(start);
+                LOGGER.debug("Checked XML files for duplicate IDs in " + timeSince(start) + ".");
+            }
+            closeMirror();
+        }
 
-            } catch (Throwable t) {
-                try {
-                    LOGGER.error("Error validating xml files!", t);
-                    registry.reportSystemError(payload);
-                } catch (IOException e) {
-                    LOGGER.error("Unable to post error to validator!", e);
+        /**
+         * The last stage: reports the result.
+         */
+        void report() throws IOException {
+            if (abandonIfSuperseded()) {
+                return;
+            }
+            finished = true;
+            if (errors.isValid()) {
+                result = "valid";
+                registry.reportCommitValid(payload, ruleSetVersion);
 
-                }
-                LOGGER.error("Unexpected error validating " + payload.getRepository().getPath() + " commit " + payload.getCommitHash(), t);
-            } finally {
+            } else {
+                result = "invalid";
                 try {
-                    FileUtils.deleteDirectory(gitDir);
+                    final String reportUrl = reports.writeFailureReport(payload, errors);
+                    registry.reportCommitInvalid(payload, reportUrl, ruleSetVersion);
                 } catch (IOException e) {
-                    LOGGER.warn("Unable to delete temporary git directory: " + gitDir.getAbsolutePath());
+                    registry.reportCommitInvalid(payload, null, ruleSetVersion);
+                    throw new IOException(e);
                 }
             }
         }
 
-        private long validateFileFromGitDir(File file, DPLAVAMetadataValidator v, ErrorAggregator errors) {
-            if (file.isHidden()) {
-                return 0;
+        /**
+         * Reports an unexpected error in any stage.
+         */
+        void fail(final Throwable t) {
+            try {
+                LOGGER.error("Error validating xml files!", t);
+                result = "error";
+                registry.reportSystemError(payload);
+            } catch (IOException e) {
+                LOGGER.error("Unable to post error to validator!", e);
+
+            }
+            LOGGER.error("Unexpected error validating " + payload.getRepository().getPath() + " commit " + payload.getCommitHash(), t);
+        }
+
+        void closeMirror() {
+            if (mirror != null) {
+                mirror.close();
+            }
+        }
+
+        void closeErrors() {
+            try {
+                errors.close();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to remove spilled errors.", e);
+            }
+        }
+
+        /**
+         * Finds the nearest ancestor of the given commit that was valid.  The statuses
+         * recorded locally are checked first, which requires no requests at all; only
+         * if none of the ancestors is known locally to be valid is the registry asked
+         * about each of them in turn (still answering from the local record where it can,
+         * and recording its answers there).  That walk stops at the first ancestor known
+         * locally to be invalid, after which every file is validated, so that a repository
+         * that has been failing for a long time isn't looked up commit by commit on every
+         * push.
+         * @return the last valid commit, or null if there is none
+         */
+        private RevCommit findLastValidCommit(Repository repo, RevCommit current) throws IOException, GitAPIException {
+            for (RevCommit c : Git.wrap(repo).log().add(current).call()) {
+                if (!c.equals(current) && ValidityRegistry.SUCCESS.equals(statuses.get(payload.getRepository(), c.getName()))) {
+                    return c;
+                }
             }
-            if (file.getName().equalsIgnoreCase("readme.md")) {
-                return 0;
+            for (RevCommit c : Git.wrap(repo).log().add(current).call()) {
+                if (c.equals(current)) {
+                    continue;
+                }
+                if (ValidityRegistry.FAILURE.equals(statuses.get(payload.getRepository(), c.getName()))) {
+                    return null;
+                }
+                if (ValidityRegistry.SUCCESS.equals(registry.getCommitStatus(payload.getRepository(), c.getName()))) {
+                    return c;
+                }
             }
-            if (file.isDirectory()) {
-                long count = 0;
-                for (File f : file.listFiles()) {
-                    count += validateFileFromGitDir(f, v, errors);
+            return null;
+        }
+
+        /**
+         * Checks the dcterms:identifier of the xml files for duplicates, adding entries
+         * to the ErrorAggregator if found.  When the identifier index of the previous
+         * commit is available, only the files changed since then are checked.  The
+         * identifiers of validated files are taken from the facts captured during their
+         * validation, so only files that weren't validated are read here.
+         * @param current the commit being validated
+         * @param previous the last valid commit, or null to check every file
+         * @param diffs the changes since the previous commit, or null to check every file
+         * @param facts the RecordFacts of each validated file, by path
+         * @return the identifier index for the current commit
+         */
+        private IdentifierIndex checkIdentifiers(Repository repo, RevCommit current, RevCommit previous, List<DiffEntry> diffs, Map<String, RecordFacts> facts, ErrorAggregator errors) throws IOException {
+            IdentifierIndex index = previous == null ? null : identifierIndexes.load(payload.getRepository(), previous.getName());
+            if (index == null) {
+                index = new IdentifierIndex();
+                for (GitBlobRecord record : findFiles(repo, current)) {
+                    if (isIndexedPath(record.getPath())) {
+                        indexIdentifier(index, record, facts, errors);
+                    }
                 }
-                return count;
+                index.checkForDuplicates(errors);
             } else {
-                try {
-                    LOGGER.trace("Validating " + file.getName());
-                    v.validateFile(file, errors);
-                    return 1;
-                } catch (Throwable t) {
-                    errors.error("System Error (" + t.getMessage() == null ? t.getClass().getName() : t.getLocalizedMessage() + ")");
-                    return 1;
+                LOGGER.trace("Updating identifier index of " + previous.getName() + ".");
+                final List<String> changed = new ArrayList<>();
+                for (DiffEntry diff : diffs) {
+                    if (!diff.getChangeType().equals(DiffEntry.ChangeType.ADD) && !diff.getChangeType().equals(DiffEntry.ChangeType.COPY)) {
+                        index.remove(diff.getOldPath());
+                    }
+                    if (!diff.getChangeType().equals(DiffEntry.ChangeType.DELETE) && isIndexedPath(diff.getNewPath())) {
+                        indexIdentifier(index, new GitBlobRecord(repo, diff.getNewPath(), diff.getNewId().toObjectId()), facts, errors);
+                        changed.add(diff.getNewPath());
+                    }
+                }
+                index.checkForDuplicates(changed, errors);
+            }
+            return index;
+        }
+
+        private void indexIdentifier(IdentifierIndex index, GitBlobRecord record, Map<String, RecordFacts> facts, ErrorAggregator errors) {
+            if (facts.containsKey(record.getPath())) {
+                index.put(record.getPath(), facts.get(record.getPath()).getIdentifier());
+                return;
+            }
+            try (InputStream in = record.openStream()) {
+                index.put(record.getPath(), IdentifierIndex.readIdentifier(new InputSource(in)));
+            } catch (SAXException | IOException e) {
+                index.remove(record.getPath());
+                errors.error("Unable to parse " + record.getName());
+            }
+        }
+
+        /**
+         * Lists every file in the given commit, in the order git stores them.
+         */
+        private List<GitBlobRecord> findFiles(Repository repo, RevCommit commit) throws IOException {
+            final List<GitBlobRecord> records = new ArrayList<>();
+            try (TreeWalk tw = new TreeWalk(repo)) {
+                tw.addTree(commit.getTree());
+                tw.setRecursive(true);
+                while (tw.next()) {
+                    final FileMode mode = tw.getFileMode(0);
+                    if (mode.equals(FileMode.REGULAR_FILE) || mode.equals(FileMode.EXECUTABLE_FILE)) {
+                        records.add(new GitBlobRecord(repo, tw.getPathString(), tw.getObjectId(0)));
+                    }
                 }
             }
+            return records;
+        }
+
+        /**
+         * Excludes hidden files and directories and readme files from validation.
+         */
+        private boolean shouldValidate(String path) {
+            final String name = path.substring(path.lastIndexOf('/') + 1);
+            return !name.equalsIgnoreCase("readme.md") && !path.startsWith(".") && !path.contains("/.");
+        }
+
+        private boolean isIndexedPath(String path) {
+            return path.endsWith(".xml") && !path.startsWith(".") && !path.contains("/.");
         }
     }
 
@@ -303,39 +959,17 @@ public class RepositoryCommitValidator {
         }
     }
 
-    /**
-     * Checks the dcterms:identifier of every xml file for duplicates, adding entries
-     * to the ErrorAggregator if found.
-     */
-    private void checkIdentifiers(HashMap<String, String> ids, Document doc, File directory, ErrorAggregator errors) {
-        try {
-            LOGGER.trace("Checking " + directory.getName() + " for unique ID.");
-            for (File file : directory.listFiles()) {
-                if (file.isDirectory() && !file.getName().startsWith(".")) {
-                    checkIdentifiers(ids, doc, file, errors);
-                } else if (file.getName().endsWith(".xml")) {
-                    doc = builder.parse(file);
-                    doc.getDocumentElement().normalize();
-                    
-                    String id = doc.getElementsByTagName("dcterms:identifier").item(0).getTextContent();
-                    if (ids.get(id) == null)
-                        ids.put(id, file.getName());
-                    else
-                        errors.error("Files \"" + ids.get(id) + "\" and \"" + file.getName() + "\" have the same id.");
-                }
-            }
-        } catch (SAXException | IOException e) {
-            errors.error("Unable to parse " + directory.getName());
-        }
-    }
-    
     /**
      * Because new versions of this validation application may result in new rules 
      * to be enforced, for simplicity, the first time any repository is validated by
      * a running instance of this code all items are validated, whether they were 
      * considered valid before or not.
      */
-    private static boolean hasThisDeployedVersionValidatedRepositoryYet(final String repo) {
+    private static synchronized boolean hasThisDeployedVersionValidatedRepository(final String repo) {
+        return validatedRepositories.contains(repo);
+    }
+
+    private static synchronized boolean hasThisDeployedVersionValidatedRepositoryYet(final String repo) {
         if (validatedRepositories.contains(repo)) {
             return true;
         } else {
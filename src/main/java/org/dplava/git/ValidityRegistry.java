@@ -20,4 +20,30 @@ public interface ValidityRegistry {
 
     public void reportSystemError(GithubPayload payload) throws IOException;
 
+    /**
+     * Reports that a commit is invalid, noting the version of the rules it was validated
+     * against.  By default the version is ignored.
+     * @param ruleSetVersion the declared version of the rule set, or null if unknown
+     */
+    public default void reportCommitInvalid(GithubPayload payload, String url, String ruleSetVersion) throws IOException {
+        reportCommitInvalid(payload, url);
+    }
+
+    /**
+     * Reports that a commit is valid, noting the version of the rules it was validated
+     * against.  By default the version is ignored.
+     * @param ruleSetVersion the declared version of the rule set, or null if unknown
+     */
+    public default void reportCommitValid(GithubPayload payload, String ruleSetVersion) throws IOException {
+        reportCommitValid(payload);
+    }
+
+    /**
+     * Reports that validation of a commit was abandoned because a later push to the same
+     * branch superseded it.  By default this is reported as an error.
+     */
+    public default void reportCommitSuperseded(GithubPayload payload) throws IOException {
+        reportSystemError(payload);
+    }
+
 }
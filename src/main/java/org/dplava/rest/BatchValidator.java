@@ -0,0 +1,222 @@
+package org.dplava.rest;
+
+import org.dplava.git.IdentifierIndex;
+import org.dplava.validation.DPLAVAMetadataValidator;
+import org.dplava.validation.ErrorAggregator;
+import org.dplava.validation.ErrorRenderer;
+import org.dplava.validation.ParallelFileValidator;
+import org.dplava.validation.RecordFacts;
+import org.dplava.validation.RecordSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Validates a stream of records, writing the results as JSON as each group of records
+ * is validated, so that large batches needn't be held in memory and results start
+ * arriving at once.  Each group is validated in parallel with the shared validator in
+ * the given pool, after which the identifiers of every record in the batch are checked
+ * for duplicates.  The JSON result is of the form:
+ * <pre>
+ * {
+ *   "ruleSetVersion": "...", (if the validator enforces a rule set)
+ *   "rulesVersion": "...",
+ *   "files": [ { "name": "a.xml", "path": "dir/a.xml", "valid": false, "identifier": "...", "errors": [ { "severity": "error", "line": 3, ... } ] } ],
+ *   "errors": [ { "severity": "error", "rule": "duplicate-identifier", "message": "Files \"a.xml\" and \"b.xml\" have the same id." } ],
+ *   "fileCount": 1,
+ *   "invalidCount": 1,
+ *   "valid": false
+ * }
+ * </pre>
+ * where each error is written by ErrorRenderer.writeError().  The results may instead
+ * be written as a JUnit XML report (with a test case for each record) or a text report
+ * (see ErrorRenderer), in which case the errors are spilled to disk until every record
+ * has been validated.
+ */
+class BatchValidator implements StreamingOutput {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchValidator.class);
+
+    /**
+     * A source of records that may only be read once, in order.
+     */
+    interface Records {
+
+        /**
+         * @return the next record, or null if there are no more
+         */
+        RecordSource next() throws IOException;
+    }
+
+    /**
+     * The forms in which the results may be written.
+     */
+    enum Format {
+        JSON(MediaType.APPLICATION_JSON), JUNIT(MediaType.APPLICATION_XML), TEXT(MediaType.TEXT_PLAIN);
+
+        private String mediaType;
+
+        Format(final String mediaType) {
+            this.mediaType = mediaType;
+        }
+
+        String getMediaType() {
+            return mediaType;
+        }
+    }
+
+    /**
+     * A consumer of the result of validating each record.
+     */
+    private interface ResultWriter {
+        void write(RecordSource record, String identifier, ErrorAggregator errors) throws IOException;
+    }
+
+    private DPLAVAMetadataValidator validator;
+
+    private ParallelFileValidator fileValidator;
+
+    private Records records;
+
+    private int groupSize;
+
+    private Format format;
+
+    BatchValidator(final DPLAVAMetadataValidator validator, final ParallelFileValidator fileValidator, final Records records, final int groupSize) {
+        this(validator, fileValidator, records, groupSize, Format.JSON);
+    }
+
+    BatchValidator(final DPLAVAMetadataValidator validator, final ParallelFileValidator fileValidator, final Records records, final int groupSize, final Format format) {
+        this.validator = validator;
+        this.fileValidator = fileValidator;
+        this.records = records;
+        this.groupSize = groupSize;
+        this.format = format;
+    }
+
+    @Override
+    public void write(final OutputStream output) throws IOException {
+        if (format == Format.JSON) {
+            writeJson(output);
+            return;
+        }
+        try (ErrorAggregator all = ErrorAggregator.spilling()) {
+            // the errors that don't concern a single record follow those of every record
+            final ErrorAggregator batchErrors = new ErrorAggregator();
+            final List<ErrorRenderer.TestCase> testCases = new ArrayList<>();
+            validateAll(batchErrors, (record, identifier, errors) -> {
+                final int recorded = all.getRecordedCount();
+                all.addAll(errors);
+                if (format == Format.JUNIT) {
+                    testCases.add(new ErrorRenderer.TestCase(record.getPath(), all.getRecordedCount() - recorded));
+                }
+            }, () -> { });
+            all.addAll(batchErrors);
+            if (format == Format.JUNIT) {
+                ErrorRenderer.writeJUnit(all, validator.getRuleSetVersion() == null ? "dplava" : "dplava " + validator.getRuleSetVersion(), testCases, output);
+            } else {
+                ErrorRenderer.writeText(all, new OutputStreamWriter(output, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private void writeJson(final OutputStream output) throws IOException {
+        final ErrorAggregator batchErrors = new ErrorAggregator();
+        final int[] counts = new int[2];
+        try (JsonGenerator json = Json.createGenerator(output)) {
+            json.writeStartObject();
+            if (validator.getRuleSetVersion() != null) {
+                json.write("ruleSetVersion", validator.getRuleSetVersion());
+            }
+            if (validator.getRulesVersion() != null) {
+                json.write("rulesVersion", validator.getRulesVersion());
+            }
+            json.writeStartArray("files");
+            validateAll(batchErrors, (record, identifier, errors) -> {
+                json.writeStartObject();
+                json.write("name", record.getName());
+                json.write("path", record.getPath());
+                json.write("valid", errors.isValid());
+                if (identifier != null) {
+                    json.write("identifier", identifier);
+                }
+                json.writeStartArray("errors");
+                errors.forEach(e -> ErrorRenderer.writeError(e, json));
+                json.writeEnd();
+                json.writeEnd();
+                counts[0] ++;
+                if (!errors.isValid()) {
+                    counts[1] ++;
+                }
+            }, json);
+            json.writeEnd();
+            json.writeStartArray("errors");
+            batchErrors.forEach(e -> ErrorRenderer.writeError(e, json));
+            json.writeEnd();
+            json.write("fileCount", counts[0]);
+            json.write("invalidCount", counts[1]);
+            json.write("valid", counts[1] == 0 && batchErrors.isValid());
+            json.writeEnd();
+        }
+    }
+
+    /**
+     * Validates every record, passing the result for each to the given ResultWriter
+     * (flushing the output after each group), and then adds any errors that don't
+     * concern a single record to batchErrors, including one if there were no records.
+     */
+    private void validateAll(final ErrorAggregator batchErrors, final ResultWriter out, final Flushable output) throws IOException {
+        final IdentifierIndex ids = new IdentifierIndex();
+        int fileCount = 0;
+        for (List<RecordSource> group = nextGroup(batchErrors); !group.isEmpty(); group = nextGroup(batchErrors)) {
+            final List<ErrorAggregator> errors = new ArrayList<>();
+            final List<RecordFacts> facts = fileValidator.validateEach(validator, group, errors);
+            for (int i = 0; i < group.size(); i ++) {
+                final RecordSource record = group.get(i);
+                final String identifier = facts.get(i) == null ? null : facts.get(i).getIdentifier();
+                // keyed by position, as a batch may contain several records with the same path
+                ids.put(fileCount + "/" + record.getName(), identifier);
+                out.write(record, identifier, errors.get(i));
+                fileCount ++;
+            }
+            output.flush();
+        }
+        if (fileCount == 0 && batchErrors.isValid()) {
+            batchErrors.error("No XML files were found to validate.");
+        }
+        ids.checkForDuplicates(batchErrors);
+    }
+
+    /**
+     * Reads the next group of records, noting any error reading them (after which no
+     * more are read).
+     */
+    private List<RecordSource> nextGroup(final ErrorAggregator batchErrors) {
+        final List<RecordSource> group = new ArrayList<>();
+        try {
+            while (group.size() < groupSize) {
+                final RecordSource record = records.next();
+                if (record == null) {
+                    break;
+                }
+                group.add(record);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Unable to read records.", e);
+            batchErrors.error("Unable to read the remaining records (" + (e.getLocalizedMessage() == null ? e.getClass().getName() : e.getLocalizedMessage()) + ")");
+            records = () -> null;
+        }
+        return group;
+    }
+}
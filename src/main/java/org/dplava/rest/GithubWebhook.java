@@ -2,7 +2,12 @@ package org.dplava.rest;
 
 import org.dplava.git.GithubPayload;
 import org.dplava.git.GithubValidityRegistry;
+import org.dplava.git.JobJournal;
 import org.dplava.git.RepositoryCommitValidator;
+import org.dplava.util.Environment;
+import org.dplava.util.Metrics;
+import org.dplava.util.SharedHttpClient;
+import org.dplava.validation.ValidatorService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,6 +27,8 @@ import java.net.URISyntaxException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -33,15 +40,87 @@ public class GithubWebhook {
     @Context
     private UriInfo uri;
 
-    private RepositoryCommitValidator validator;
+    private static final Logger LOGGER = LoggerFactory.getLogger(GithubWebhook.class);
 
-    private GithubValidityRegistry gitStatus;
+    /**
+     * The pool in which individual files are validated, shared across all requests.
+     */
+    private static final ForkJoinPool VALIDATION_POOL = new ForkJoinPool(getValidationThreadCount());
+
+    /**
+     * The compiled validator, shared across all requests and refreshed in the background
+     * when the published schema changes.
+     */
+    private static final ValidatorService VALIDATORS = new ValidatorService();
+
+    static {
+        VALIDATORS.start();
+        Metrics.getDefault().gauge("dplava_validation_pool_active_threads", "Threads validating files.", VALIDATION_POOL::getActiveThreadCount);
+        Metrics.getDefault().gauge("dplava_validation_pool_utilization", "The fraction of the file validation threads in use.", () -> VALIDATION_POOL.getActiveThreadCount() / (double) VALIDATION_POOL.getParallelism());
+    }
 
-    private static final Logger LOGGER = LoggerFactory.getLogger(GithubWebhook.class);
+    /**
+     * The registry of commit statuses, shared across all requests so that a rejection of
+     * its credentials stops all further use of them.
+     */
+    private static final GithubValidityRegistry GIT_STATUS = new GithubValidityRegistry();
+
+    /**
+     * The queue of commits to validate, shared across all requests so that the number of
+     * commits validated at once (VALIDATION_WORKERS, default 4) is bounded for the whole
+     * service.  Queued commits are journaled, and any left over from before a restart are
+     * queued again at startup.
+     */
+    private static final RepositoryCommitValidator VALIDATOR = new RepositoryCommitValidator(Math.max(1, Environment.getInt("VALIDATION_WORKERS", 4)), VALIDATION_POOL, VALIDATORS, GIT_STATUS, JobJournal.getDefault());
+
+    static {
+        VALIDATOR.recover(GIT_STATUS);
+    }
 
-    public GithubWebhook() {
-        gitStatus = new GithubValidityRegistry();
-        validator = new RepositoryCommitValidator(4, gitStatus);
+    /**
+     * Ensures that the shared components have been created (and so that any commits left
+     * over from before a restart are being validated) without waiting for the first request.
+     */
+    static void start() {
+        LOGGER.info("Started validation service with " + getValidationThreadCount() + " validation threads.");
+    }
+
+    /**
+     * Stops the shared components, giving validations in progress up to
+     * SHUTDOWN_TIMEOUT_SECONDS (default 30) to finish.
+     */
+    static void shutdown() {
+        try {
+            VALIDATOR.shutdown(Environment.getLong("SHUTDOWN_TIMEOUT_SECONDS", 30), TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        VALIDATORS.shutdown();
+        VALIDATION_POOL.shutdownNow();
+        SharedHttpClient.shutdown();
+        LOGGER.info("Stopped validation service.");
+    }
+
+    /**
+     * @return the validator shared across all requests
+     */
+    static ValidatorService getValidators() {
+        return VALIDATORS;
+    }
+
+    /**
+     * @return the pool in which individual files are validated, shared across all requests
+     */
+    static ForkJoinPool getValidationPool() {
+        return VALIDATION_POOL;
+    }
+
+    /**
+     * Gets the number of threads used to validate files, which may be set using the
+     * VALIDATION_THREADS environment variable and defaults to the number of processors.
+     */
+    public static int getValidationThreadCount() {
+        return Math.max(1, Environment.getInt("VALIDATION_THREADS", Runtime.getRuntime().availableProcessors()));
     }
 
     @Path("version")
@@ -63,7 +142,7 @@ public class GithubWebhook {
     @Produces(MediaType.APPLICATION_JSON)
     public Response healthcheck() {
         return Response.status(200).entity(Json.createObjectBuilder().add("github_api",
-                Json.createObjectBuilder().add("healthy", gitStatus.isReportStorageAccessible())).build()).build();
+                Json.createObjectBuilder().add("healthy", GIT_STATUS.isReportStorageAccessible())).build()).build();
     }
 
     @Path("status")
@@ -74,6 +153,16 @@ public class GithubWebhook {
         return Response.status(200).entity(Json.createObjectBuilder().add("status", "ok").build()).build();
     }
 
+    /**
+     * Serves the metrics in the Prometheus text exposition format.
+     */
+    @Path("metrics")
+    @GET
+    @Produces("text/plain; version=0.0.4")
+    public Response metrics() {
+        return Response.status(200).entity(Metrics.getDefault().render()).build();
+    }
+
     @Path("webhook/push")
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
@@ -101,12 +190,14 @@ public class GithubWebhook {
             return Response.status(200).entity("This hook only validates the master or main branch.").build();
         }
 
+        // the commit is only queued here; everything else, including reporting it as pending,
+        // happens in the background so that github never waits on us
         try {
-            validator.queueForValidation(githubPayload, gitStatus);
+            VALIDATOR.queueForValidation(githubPayload, GIT_STATUS);
         } catch (IOException e) {
             return Response.status(500).build();
         }
-        return Response.status(201).build();
+        return Response.status(202).build();
     }
 
 }
@@ -0,0 +1,29 @@
+package org.dplava.rest;
+
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
+
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Starts the service's shared components when the application is deployed, rather than
+ * on the first request, and shuts them down gracefully when it's undeployed (which the
+ * servlet container signals through the destruction of the jersey servlet).
+ */
+@Provider
+public class ServiceLifecycle implements ContainerLifecycleListener {
+
+    @Override
+    public void onStartup(Container container) {
+        GithubWebhook.start();
+    }
+
+    @Override
+    public void onReload(Container container) {
+    }
+
+    @Override
+    public void onShutdown(Container container) {
+        GithubWebhook.shutdown();
+    }
+}
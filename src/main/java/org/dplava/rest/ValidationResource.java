@@ -0,0 +1,207 @@
+package org.dplava.rest;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.dplava.util.Environment;
+import org.dplava.util.Metrics;
+import org.dplava.validation.DPLAVAMetadataValidator;
+import org.dplava.validation.ParallelFileValidator;
+import org.dplava.validation.RecordSource;
+import org.glassfish.jersey.media.multipart.BodyPart;
+import org.glassfish.jersey.media.multipart.FormDataBodyPart;
+import org.glassfish.jersey.media.multipart.FormDataMultiPart;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Validates records posted directly to the service, so that a record can be checked in
+ * moments without pushing it to github.  Records may be posted one at a time, as the
+ * files of a multipart form, or as a zip or (optionally compressed) tar archive, and
+ * are validated with the same validator as the commits to github, but in a separate
+ * pool of VALIDATION_API_THREADS threads (by default half of VALIDATION_THREADS), so
+ * that posted records can't hold up the validation of commits.  See
+ * BatchValidator for the form of the results, which are streamed as they're produced
+ * as JSON, or written as a JUnit XML or text report if the "format" parameter is
+ * "junit" or "text".
+ *
+ * Only the XML files in a batch or archive are validated (skipping hidden files and
+ * directories), and any record larger than VALIDATION_API_MAX_RECORD_BYTES (default
+ * 10 MB) is reported as an error rather than read.  A batch or archive without any
+ * XML files is reported as invalid.
+ */
+@Path("validate")
+public class ValidationResource {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValidationResource.class);
+
+    private static final long MAX_RECORD_BYTES = Environment.getLong("VALIDATION_API_MAX_RECORD_BYTES", 10 * 1024 * 1024);
+
+    private static final int THREAD_COUNT = Math.max(1, Environment.getInt("VALIDATION_API_THREADS", GithubWebhook.getValidationThreadCount() / 2));
+
+    /**
+     * The number of records read and validated at once, enough to keep the pool busy.
+     */
+    private static final int GROUP_SIZE = 4 * THREAD_COUNT;
+
+    private static final ParallelFileValidator FILE_VALIDATOR = new ParallelFileValidator(new ForkJoinPool(THREAD_COUNT));
+
+    @Path("record")
+    @POST
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.TEXT_XML })
+    @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML, MediaType.TEXT_PLAIN })
+    public Response validateRecord(final InputStream body, @QueryParam("name") @DefaultValue("record.xml") final String name,
+                                   @QueryParam("format") @DefaultValue("json") final String format) throws Exception {
+        countRequest("record");
+        final Iterator<RecordSource> records = Collections.singletonList(readRecord(name, body)).iterator();
+        return validate(() -> records.hasNext() ? records.next() : null, format);
+    }
+
+    @Path("batch")
+    @POST
+    @Consumes(MediaType.MULTIPART_FORM_DATA)
+    @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML, MediaType.TEXT_PLAIN })
+    public Response validateBatch(final FormDataMultiPart form, @QueryParam("format") @DefaultValue("json") final String format) throws Exception {
+        countRequest("batch");
+        final Iterator<BodyPart> parts = form.getBodyParts().iterator();
+        return validate(() -> {
+            while (parts.hasNext()) {
+                final FormDataBodyPart part = (FormDataBodyPart) parts.next();
+                final String filename = part.getContentDisposition().getFileName();
+                final String path = normalizePath(filename == null ? part.getName() : filename);
+                if (path != null && shouldValidate(path)) {
+                    try (InputStream in = part.getValueAs(InputStream.class)) {
+                        return readRecord(path, in);
+                    }
+                }
+            }
+            return null;
+        }, format);
+    }
+
+    @Path("archive")
+    @POST
+    @Consumes({ "application/zip", "application/x-tar", "application/gzip", "application/x-gzip", MediaType.APPLICATION_OCTET_STREAM })
+    @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML, MediaType.TEXT_PLAIN })
+    public Response validateArchive(final InputStream body, @QueryParam("format") @DefaultValue("json") final String format) throws Exception {
+        countRequest("archive");
+        InputStream in = new BufferedInputStream(body);
+        try {
+            in = new BufferedInputStream(new CompressorStreamFactory().createCompressorInputStream(in));
+        } catch (CompressorException e) {
+            // not compressed
+        }
+        final ArchiveInputStream archive;
+        try {
+            archive = new ArchiveStreamFactory().createArchiveInputStream(in);
+        } catch (ArchiveException e) {
+            return Response.status(400).entity("Unrecognized archive format!").type(MediaType.TEXT_PLAIN).build();
+        }
+        return validate(() -> {
+            for (ArchiveEntry entry = archive.getNextEntry(); entry != null; entry = archive.getNextEntry()) {
+                final String path = normalizePath(entry.getName());
+                if (!entry.isDirectory() && shouldValidate(path) && archive.canReadEntryData(entry)) {
+                    return readRecord(path, archive);
+                }
+            }
+            return null;
+        }, format);
+    }
+
+    private Response validate(final BatchValidator.Records records, final String format) throws Exception {
+        final BatchValidator.Format f;
+        try {
+            f = BatchValidator.Format.valueOf(format.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Response.status(400).entity("Unrecognized format! (expected json, junit or text)").type(MediaType.TEXT_PLAIN).build();
+        }
+        final DPLAVAMetadataValidator validator = GithubWebhook.getValidators().getValidator();
+        return Response.status(200).entity(new BatchValidator(validator, FILE_VALIDATOR, records, GROUP_SIZE, f)).type(f.getMediaType()).build();
+    }
+
+    /**
+     * Reads a record from the stream, unless it's too large, in which case an error is
+     * reported for it instead.
+     */
+    private static RecordSource readRecord(final String path, final InputStream in) throws IOException {
+        final byte[] content = IOUtils.toByteArray(new BoundedInputStream(in, MAX_RECORD_BYTES + 1));
+        if (content.length <= MAX_RECORD_BYTES) {
+            return new BufferedRecord(path, content);
+        }
+        LOGGER.debug("Skipping " + path + " as it's larger than " + MAX_RECORD_BYTES + " bytes.");
+        return new RecordSource() {
+            @Override
+            public String getPath() {
+                return path;
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                throw new IOException("File is larger than the maximum of " + MAX_RECORD_BYTES + " bytes");
+            }
+        };
+    }
+
+    /**
+     * Removes any leading "./" from the path, as added to every entry of a tar archive
+     * of the current directory.
+     */
+    private static String normalizePath(final String path) {
+        return path == null ? null : path.replaceFirst("^(\\./+)+", "");
+    }
+
+    /**
+     * Excludes files other than XML files, hidden files and the contents of hidden
+     * directories (including those added to archives by macOS).
+     */
+    private static boolean shouldValidate(final String path) {
+        return path.toLowerCase().endsWith(".xml") && !path.startsWith(".") && !path.contains("/.") && !path.startsWith("__MACOSX/");
+    }
+
+    private static void countRequest(final String endpoint) {
+        Metrics.getDefault().counter("dplava_api_requests_total", "Requests to validate posted records, by endpoint.", "endpoint", endpoint).increment();
+    }
+
+    private static class BufferedRecord implements RecordSource {
+
+        private String path;
+
+        private byte[] content;
+
+        BufferedRecord(final String path, final byte[] content) {
+            this.path = path;
+            this.content = content;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new ByteArrayInputStream(content);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.dplava.util;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashing helpers for naming cached files and keying cached results.
+ */
+public class Digests {
+
+    public static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static String sha256Hex(final byte[] bytes) {
+        return Hex.encodeHexString(newSha256().digest(bytes));
+    }
+
+    public static String sha256Hex(final String value) {
+        return sha256Hex(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
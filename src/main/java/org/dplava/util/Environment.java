@@ -0,0 +1,40 @@
+package org.dplava.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads configuration values from environment variables (or, failing that, system
+ * properties of the same name) falling back to defaults when unset or unparsible.
+ */
+public class Environment {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Environment.class);
+
+    public static String getString(final String name, final String defaultValue) {
+        final String value = System.getenv(name) != null ? System.getenv(name) : System.getProperty(name);
+        return value == null ? defaultValue : value;
+    }
+
+    public static long getLong(final String name, final long defaultValue) {
+        final String value = getString(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.debug("Unparsible " + name + " value of \"" + value + "\" defaulted to " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    public static int getInt(final String name, final int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    public static boolean getBoolean(final String name, final boolean defaultValue) {
+        final String value = getString(name, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
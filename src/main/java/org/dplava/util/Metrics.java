@@ -0,0 +1,199 @@
+package org.dplava.util;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * A minimal registry of counters, gauges and histograms, which can be rendered in the
+ * Prometheus text exposition format.  Each metric is identified by its name and a set
+ * of labels (given as alternating names and values), and is created on first use, so
+ * callers needn't hold on to the metrics they update.
+ *
+ * This class is thread-safe, and updating a metric never blocks.
+ */
+public class Metrics {
+
+    /**
+     * The default histogram buckets, in seconds.
+     */
+    private static final double[] BUCKETS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300 };
+
+    private static final Metrics DEFAULT = new Metrics();
+
+    private Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    public Counter counter(final String name, final String help, final String ... labels) {
+        return (Counter) family(name, help, "counter").series.computeIfAbsent(formatLabels(labels), l -> new Counter());
+    }
+
+    public Histogram histogram(final String name, final String help, final String ... labels) {
+        return (Histogram) family(name, help, "histogram").series.computeIfAbsent(formatLabels(labels), l -> new Histogram());
+    }
+
+    /**
+     * Registers (or replaces) a gauge whose value is read whenever the metrics are rendered.
+     */
+    public void gauge(final String name, final String help, final DoubleSupplier value, final String ... labels) {
+        family(name, help, "gauge").series.put(formatLabels(labels), new Gauge(value));
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format (version 0.0.4).
+     */
+    public String render() {
+        final StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Family> family : families.entrySet()) {
+            final String name = family.getKey();
+            sb.append("# HELP ").append(name).append(' ').append(family.getValue().help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.getValue().type).append('\n');
+            for (Map.Entry<String, Object> series : family.getValue().series.entrySet()) {
+                final String labels = series.getKey();
+                final Object metric = series.getValue();
+                if (metric instanceof Counter) {
+                    appendSample(sb, name, labels, ((Counter) metric).get());
+                } else if (metric instanceof Gauge) {
+                    appendSample(sb, name, labels, ((Gauge) metric).value.getAsDouble());
+                } else {
+                    final Histogram h = (Histogram) metric;
+                    long cumulative = 0;
+                    for (int i = 0; i < BUCKETS.length; i ++) {
+                        cumulative += h.buckets[i].sum();
+                        appendSample(sb, name + "_bucket", withLabel(labels, "le", formatValue(BUCKETS[i])), cumulative);
+                    }
+                    final long count = h.count.sum();
+                    appendSample(sb, name + "_bucket", withLabel(labels, "le", "+Inf"), count);
+                    appendSample(sb, name + "_sum", labels, h.sum.sum());
+                    appendSample(sb, name + "_count", labels, count);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private Family family(final String name, final String help, final String type) {
+        final Family family = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is a " + family.type + ", not a " + type + "!");
+        }
+        return family;
+    }
+
+    private static String formatLabels(final String ... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name/value pairs!");
+        }
+        String result = "";
+        for (int i = 0; i < labels.length; i += 2) {
+            result = withLabel(result, labels[i], labels[i + 1]);
+        }
+        return result;
+    }
+
+    private static String withLabel(final String labels, final String name, final String value) {
+        final String label = name + "=\"" + (value == null ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")) + "\"";
+        return labels.isEmpty() ? label : labels + "," + label;
+    }
+
+    private static void appendSample(final StringBuilder sb, final String name, final String labels, final double value) {
+        sb.append(name);
+        if (!labels.isEmpty()) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ').append(formatValue(value)).append('\n');
+    }
+
+    private static String formatValue(final double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return String.valueOf((long) value);
+        }
+        return String.format(Locale.ROOT, "%s", value);
+    }
+
+    private static class Family {
+
+        private String help;
+
+        private String type;
+
+        private Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        Family(final String help, final String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public static class Counter {
+
+        private DoubleAdder value = new DoubleAdder();
+
+        public void increment() {
+            value.add(1);
+        }
+
+        public void add(final double amount) {
+            value.add(amount);
+        }
+
+        public double get() {
+            return value.sum();
+        }
+    }
+
+    public static class Histogram {
+
+        private LongAdder[] buckets = new LongAdder[BUCKETS.length];
+
+        private LongAdder count = new LongAdder();
+
+        private DoubleAdder sum = new DoubleAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i ++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records a value, in seconds.
+         */
+        public void observe(final double seconds) {
+            for (int i = 0; i < BUCKETS.length; i ++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+
+        /**
+         * Records the time elapsed since the given time (from System.currentTimeMillis()).
+         */
+        public void observeSince(final long startMillis) {
+            observe((System.currentTimeMillis() - startMillis) / 1000.0);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    private static class Gauge {
+
+        private DoubleSupplier value;
+
+        Gauge(final DoubleSupplier value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package org.dplava.util;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the single, long-lived HttpClient used for every outgoing request, so that
+ * connections (and their TLS sessions) to github and to the schema host are pooled and
+ * kept alive between requests rather than being set up anew for each one.
+ *
+ * The pool and timeouts are configured by the HTTP_MAX_CONNECTIONS,
+ * HTTP_MAX_CONNECTIONS_PER_ROUTE, HTTP_CONNECT_TIMEOUT_MS, HTTP_SOCKET_TIMEOUT_MS and
+ * HTTP_IDLE_TIMEOUT_SECONDS environment variables.  Callers must not close the client,
+ * but must close (and ideally fully consume) every response so that its connection is
+ * returned to the pool.
+ */
+public class SharedHttpClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedHttpClient.class);
+
+    private static CloseableHttpClient CLIENT;
+
+    public static synchronized CloseableHttpClient get() {
+        if (CLIENT == null) {
+            final PoolingHttpClientConnectionManager connections = new PoolingHttpClientConnectionManager();
+            connections.setMaxTotal(Environment.getInt("HTTP_MAX_CONNECTIONS", 50));
+            connections.setDefaultMaxPerRoute(Environment.getInt("HTTP_MAX_CONNECTIONS_PER_ROUTE", 10));
+            connections.setValidateAfterInactivity(10000);
+            final int connectTimeout = Environment.getInt("HTTP_CONNECT_TIMEOUT_MS", 10000);
+            final RequestConfig config = RequestConfig.custom()
+                    .setConnectTimeout(connectTimeout)
+                    .setConnectionRequestTimeout(connectTimeout)
+                    .setSocketTimeout(Environment.getInt("HTTP_SOCKET_TIMEOUT_MS", 60000))
+                    .build();
+            CLIENT = HttpClients.custom()
+                    .setConnectionManager(connections)
+                    .setDefaultRequestConfig(config)
+                    .evictExpiredConnections()
+                    .evictIdleConnections(Environment.getLong("HTTP_IDLE_TIMEOUT_SECONDS", 60), TimeUnit.SECONDS)
+                    .build();
+        }
+        return CLIENT;
+    }
+
+    /**
+     * Closes the shared client and its pooled connections.  A new client will be created
+     * if one is needed again.
+     */
+    public static synchronized void shutdown() {
+        if (CLIENT != null) {
+            try {
+                CLIENT.close();
+            } catch (IOException e) {
+                LOGGER.warn("Error closing shared HttpClient.", e);
+            }
+            CLIENT = null;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.dplava.util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors on which the service's background work runs.
+ */
+public class ThreadPools {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ThreadPools.class);
+
+    /**
+     * Creates an executor for tasks that spend most of their time waiting on I/O (such as
+     * fetching repositories and calling the github API) and whose number is bounded by the
+     * caller.  If the VIRTUAL_THREADS environment variable is true and the JVM supports
+     * them, each task runs on its own virtual thread; otherwise tasks run on a cached pool
+     * of named daemon threads.
+     */
+    public static ExecutorService newIoExecutor(final String name) {
+        if (Environment.getBoolean("VIRTUAL_THREADS", false)) {
+            try {
+                // looked up reflectively, as virtual threads need a newer JVM than we're built for
+                final ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                LOGGER.info("Running " + name + " tasks on virtual threads.");
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                LOGGER.warn("Virtual threads are not supported by this JVM; running " + name + " tasks on platform threads.");
+            }
+        }
+        return Executors.newCachedThreadPool(newThreadFactory(name));
+    }
+
+    /**
+     * Creates an executor with a fixed number of named daemon threads.  Its queue is
+     * unbounded, so the number of tasks submitted to it must be bounded by the caller.
+     */
+    public static ExecutorService newFixedExecutor(final String name, final int threads) {
+        return Executors.newFixedThreadPool(threads, newThreadFactory(name));
+    }
+
+    /**
+     * Creates a ThreadFactory for named daemon threads.
+     */
+    public static ThreadFactory newThreadFactory(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
@@ -49,7 +49,8 @@ public class ValidateCommit {
             post.setHeader("X-Github-Event", "push");
             post.setHeader("X-Hub-Signature", signature);
             try (CloseableHttpResponse response = client.execute(post)) {
-                if (response.getStatusLine().getStatusCode() == 201) {
+                final int status = response.getStatusLine().getStatusCode();
+                if (status == 201 || status == 202) {
                     System.out.println("Triggered validation of  commit " + commitHash + " for repo " + repoName + ".");
                 } else {
                     System.err.println(response.getStatusLine().getStatusCode() + " status response!");
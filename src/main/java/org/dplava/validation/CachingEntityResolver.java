@@ -5,14 +5,12 @@ import java.io.StringReader;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
+import org.dplava.util.SharedHttpClient;
 import org.xml.sax.EntityResolver;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -21,48 +19,43 @@ public class CachingEntityResolver implements EntityResolver {
 
     private Collection<String> allowedDomains;
 
-    private Map<String, String> cachedSchemas;
+    private EntityCache cache;
 
     /**
-     * Instantiates and initializes a CachingEntityResolver that maintains a perpetual
-     * in-memory cache for all entities resolved from the given allowed domains.
+     * Instantiates and initializes a CachingEntityResolver that resolves entities from
+     * the given allowed domains through the shared EntityCache.
      * @param allowedDomains domains from which scheme files will be cached.  Others will be
      *                       fetched new each time.
      */
     public CachingEntityResolver(String ... allowedDomains) {
+        this(EntityCache.getDefault(), allowedDomains);
+    }
+
+    public CachingEntityResolver(EntityCache cache, String ... allowedDomains) {
         this.allowedDomains = Arrays.asList(allowedDomains);
-        this.cachedSchemas = new HashMap<>();
+        this.cache = cache;
     }
 
     @Override
     public InputSource resolveEntity(String publicId, String systemId) throws SAXException, IOException {
         URL url = new URL(systemId);
-        synchronized (allowedDomains) {
-            if (allowedDomains.contains(url.getHost())) {
-                if (cachedSchemas.containsKey(systemId)) {
-                    return new InputSource(new StringReader(cachedSchemas.get(systemId)));
-                } else {
-                    cachedSchemas.put(systemId, getSmallBodyFollowRedirects(url));
-                    return new InputSource(new StringReader(cachedSchemas.get(systemId)));
-                }
-            } else {
-                return new InputSource(getSmallBodyFollowRedirects(url));
-            }
+        if (allowedDomains.contains(url.getHost())) {
+            return new InputSource(new StringReader(cache.get(url)));
+        } else {
+            return new InputSource(new StringReader(getSmallBodyFollowRedirects(url)));
         }
     }
     
     public static String getSmallBodyFollowRedirects(final URL url) throws IOException {
-        try (CloseableHttpClient client = HttpClients.createDefault()) {
-            HttpGet get = new HttpGet(url.toString());
-            try (CloseableHttpResponse response = client.execute(get)) {
-                final int status = response.getStatusLine().getStatusCode();
-                if (status < 200 || status >= 300) {
-                    throw new RuntimeException("Unexpected status (" + response.getStatusLine().getReasonPhrase() + ") when fetching " + url + "!");
-                } else {
-                    return EntityUtils.toString(response.getEntity());
-                }
+        final CloseableHttpClient client = SharedHttpClient.get();
+        HttpGet get = new HttpGet(url.toString());
+        try (CloseableHttpResponse response = client.execute(get)) {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status < 200 || status >= 300) {
+                throw new RuntimeException("Unexpected status (" + response.getStatusLine().getReasonPhrase() + ") when fetching " + url + "!");
+            } else {
+                return EntityUtils.toString(response.getEntity());
             }
-            
-        } 
+        }
     }
 }
@@ -3,16 +3,26 @@ package org.dplava.validation;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.dplava.util.Environment;
+import org.dplava.util.Metrics;
+import org.xml.sax.EntityResolver;
 import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.validation.Schema;
 import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
@@ -28,6 +38,21 @@ import java.net.URL;
  * replaced with a new instance to reflect any published changes.  On the
  * other hand, the overhead of the constructor should be avoided when unecessary
  * as it takes longer than hundreds of individual calls to validateFile().
+ *
+ * Once constructed, validateFile() may be called concurrently from multiple
+ * threads as long as each call is given its own ErrorAggregator.  Each thread
+ * reuses its own parser and schema Validator, all of which share the compiled
+ * Schema.
+ *
+ * By default each file is validated in a single streaming pass: the parse events
+ * are schema-validated and fed directly into the schematron transformation.  Setting
+ * STREAMING_VALIDATION to false instead builds a DOM for each file which is then
+ * passed to the schematron validation.  Either way, the values needed for checks
+ * across records (see RecordFacts) are captured during the same pass.
+ * Instead of the published schema, a validator may enforce a local RuleSet, which
+ * requires no network access at all.
+ * See ValidatorService for a way to share a single instance across the
+ * application.
  */
 public class DPLAVAMetadataValidator {
 
@@ -35,22 +60,79 @@ public class DPLAVAMetadataValidator {
     
     private static final Logger LOGGER = LoggerFactory.getLogger(DPLAVAMetadataValidator.class);
 
+    /**
+     * The time spent in each phase of validating a file.  When streaming, parsing, schema
+     * and schematron validation are interleaved in a single pass, so only its total is known.
+     */
+    private static final Metrics.Histogram PARSE_PHASE = phase("parse_and_schema");
+
+    private static final Metrics.Histogram SCHEMATRON_PHASE = phase("schematron");
+
+    private static final Metrics.Histogram STREAMING_PHASE = phase("streaming");
+
+    private static Metrics.Histogram phase(final String phase) {
+        return Metrics.getDefault().histogram("dplava_file_phase_seconds", "Time spent in each phase of validating a file.", "phase", phase);
+    }
+
     private DocumentBuilderFactory factory;
 
+    private Schema schema;
+
+    private boolean streaming;
+
     EmbeddedSchematronValidator validator;
 
+    private EntityResolver resolver;
+
+    private RuleSet rules;
+
+    private ThreadLocal<DocumentBuilder> builders;
+
+    private ThreadLocal<Validator> schemaValidators;
+
+    private ThreadLocal<XMLReader> readers;
+
+    private volatile boolean schemaErrors;
+
     public DPLAVAMetadataValidator() throws ParserConfigurationException, TransformerException, IOException, SAXException {
+        this(SCHEMA_URL, Environment.getBoolean("STREAMING_VALIDATION", true));
+    }
+
+    /**
+     * @param schemaUrl the URL of the XSD (with embedded schematron rules) to enforce
+     * @param streaming true to validate each file in a single streaming pass, false to
+     *                  build a DOM for each file
+     */
+    public DPLAVAMetadataValidator(final String schemaUrl, final boolean streaming) throws ParserConfigurationException, TransformerException, IOException, SAXException {
+        this(schemaUrl, null, streaming);
+    }
+
+    /**
+     * Enforces the rules in the given rule set, using its local copies of any remote
+     * resources rather than fetching them.
+     * @param streaming true to validate each file in a single streaming pass, false to
+     *                  build a DOM for each file
+     */
+    public DPLAVAMetadataValidator(final RuleSet rules, final boolean streaming) throws ParserConfigurationException, TransformerException, IOException, SAXException {
+        this(rules.getSchemaUrl().toString(), rules, streaming);
+    }
+
+    private DPLAVAMetadataValidator(final String schemaUrl, final RuleSet rules, final boolean streaming) throws ParserConfigurationException, TransformerException, IOException, SAXException {
+        this.streaming = streaming;
+        this.rules = rules;
         factory = DocumentBuilderFactory.newInstance();
         SchemaFactory f = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
         f.setErrorHandler(new ErrorHandler() {
 
             @Override
             public void error(SAXParseException ex) throws SAXException {
+                schemaErrors = true;
                 LOGGER.error("Error parsing dplava schema!", ex);
             }
 
             @Override
             public void fatalError(SAXParseException ex) throws SAXException {
+                schemaErrors = true;
                 LOGGER.error("Error parsing dplava schema!", ex);
             }
 
@@ -58,42 +140,146 @@ public class DPLAVAMetadataValidator {
             public void warning(SAXParseException ex) throws SAXException {
                 LOGGER.warn("Error parsing dplava schema!", ex);
             }});
-        factory.setSchema(f.newSchema(new URL(SCHEMA_URL)));
+        if (rules != null) {
+            f.setResourceResolver(rules.getResourceResolver());
+        }
+        schema = f.newSchema(new URL(schemaUrl));
+        factory.setSchema(schema);
         factory.setNamespaceAware(true);
-        
+        resolver = new CachingEntityResolver("dplava.lib.virginia.edu", "www.w3.org");
+        if (rules != null) {
+            resolver = rules.getEntityResolver(resolver);
+        }
+        builders = ThreadLocal.withInitial(() -> {
+            try {
+                synchronized (factory) {
+                    // DocumentBuilderFactory isn't guaranteed to be thread-safe
+                    return factory.newDocumentBuilder();
+                }
+            } catch (ParserConfigurationException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        schemaValidators = ThreadLocal.withInitial(() -> schema.newValidator());
+        final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+        parserFactory.setNamespaceAware(true);
+        readers = ThreadLocal.withInitial(() -> {
+            try {
+                synchronized (parserFactory) {
+                    return parserFactory.newSAXParser().getXMLReader();
+                }
+            } catch (ParserConfigurationException | SAXException e) {
+                throw new RuntimeException(e);
+            }
+        });
 
         try {
-            validator = new EmbeddedSchematronValidator(SCHEMA_URL);
+            validator = rules == null ? new EmbeddedSchematronValidator(schemaUrl) : new EmbeddedSchematronValidator(rules, SchematronCache.getDefault());
         } catch (Throwable t) {
             LOGGER.error("Unable to load schematron validation routine!", t);
             
         }
     }
 
+    /**
+     * @return false if there were errors loading the schema or the schematron rules,
+     * in which case this validator will not enforce all of the rules and should be
+     * replaced as soon as possible.
+     */
+    public boolean isComplete() {
+        return !schemaErrors && validator != null;
+    }
+
+    /**
+     * @return an identifier for the version of the rules enforced by this validator, or
+     * null if not all of the rules could be loaded.
+     */
+    public String getRulesVersion() {
+        return isComplete() ? validator.getRulesVersion() : null;
+    }
+
+    /**
+     * @return the declared version of the rule set this validator enforces, or null if
+     * it enforces the published schema
+     */
+    public String getRuleSetVersion() {
+        return rules == null ? null : rules.getVersion();
+    }
+
     private DocumentBuilder getDocumentBuilder(ErrorAggregator errors) throws ParserConfigurationException {
-        DocumentBuilder b = factory.newDocumentBuilder();
+        final DocumentBuilder b = builders.get();
+        b.reset();
         b.setErrorHandler(errors);
-        b.setEntityResolver(new CachingEntityResolver("dplava.lib.virginia.edu", "www.w3.org"));
+        b.setEntityResolver(resolver);
         return b;
     }
 
-    public void validateFile(File file, ErrorAggregator errors) throws ParserConfigurationException, IOException, SAXException, TransformerException {
-        try {
-            errors.setCurrentFile(file.getName());
-            // perform schema validation
-            Document d = getDocumentBuilder(errors).parse(file);
+    public RecordFacts validateFile(File file, ErrorAggregator errors) throws ParserConfigurationException, IOException, SAXException, TransformerException {
+        return validate(file.getName(), new InputSource(file.toURI().toString()), errors);
+    }
 
-            // perform schematron validation
-            if (validator == null) {
-                errors.error("Schematron validation not performed!");    
+    /**
+     * Validates a single XML record.
+     * @param filename the name by which the record will be identified in any errors
+     * @param source the content of the record
+     * @param errors the ErrorAggregator to which errors will be added
+     * @return the facts about the record needed for checks across records, or null if
+     *         the record could not be parsed
+     */
+    public RecordFacts validate(String filename, InputSource source, ErrorAggregator errors) throws ParserConfigurationException, IOException, SAXException, TransformerException {
+        try {
+            errors.setCurrentFile(filename);
+            if (streaming) {
+                return validateStreaming(filename, source, errors);
             } else {
-                validator.validateXmlDocument(file.getName(), d, errors);
-            }
+                // perform schema validation
+                long start = System.currentTimeMillis();
+                Document d = getDocumentBuilder(errors).parse(source);
+                PARSE_PHASE.observeSince(start);
 
+                // perform schematron validation
+                if (validator == null) {
+                    errors.error(null, EmbeddedSchematronValidator.SCHEMATRON_ERROR, "Schematron validation not performed!");
+                } else {
+                    start = System.currentTimeMillis();
+                    validator.validateXmlDocument(filename, d, errors);
+                    SCHEMATRON_PHASE.observeSince(start);
+                }
+                return RecordFacts.fromDocument(d);
+            }
         } catch (SAXParseException ex) {
             errors.fatalError(ex);
+            return null;
         } finally {
             errors.setCurrentFile(null);
         }
     }
+
+    /**
+     * Performs schema and schematron validation in a single pass over the parse events
+     * without building a DOM.
+     */
+    private RecordFacts validateStreaming(String filename, InputSource source, ErrorAggregator errors) throws IOException, SAXException, TransformerException {
+        final Validator v = schemaValidators.get();
+        v.reset();
+        v.setErrorHandler(errors);
+        final XMLReader reader = readers.get();
+        reader.setEntityResolver(resolver);
+
+        final RecordFacts.Collector facts = RecordFacts.newCollector();
+        if (validator != null) {
+            facts.setContentHandler(validator.newValidationHandler(filename, errors));
+        }
+        final SAXResult result = new SAXResult(facts);
+        result.setSystemId(source.getSystemId());
+        final long start = System.currentTimeMillis();
+        v.validate(new SAXSource(reader, source), result);
+        STREAMING_PHASE.observeSince(start);
+        // reported after any schema errors, and only for well-formed records, as when
+        // validating a document
+        if (validator == null) {
+            errors.error(null, EmbeddedSchematronValidator.SCHEMATRON_ERROR, "Schematron validation not performed!");
+        }
+        return facts.getFacts();
+    }
 }
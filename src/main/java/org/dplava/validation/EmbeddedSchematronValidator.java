@@ -1,12 +1,26 @@
 package org.dplava.validation;
 
 import net.sf.saxon.dom.DocumentBuilderImpl;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.dplava.util.Digests;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
+import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
@@ -25,25 +39,87 @@ import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Set;
 
+/**
+ * Performs the schematron validation embedded in an XSD schema.
+ *
+ * This class is thread-safe: the compiled schematron is shared, while each thread
+ * that calls validateXmlDocument() reuses its own Transformer.
+ */
 public class EmbeddedSchematronValidator {
 
-    private Transformer schematron;
+    private static final Logger LOGGER = LoggerFactory.getLogger(EmbeddedSchematronValidator.class);
+
+    private SAXTransformerFactory factory;
+
+    private Templates schematron;
+
+    private String rulesVersion;
+
+    /**
+     * The key of the schematron stylesheet in the SchematronCache.
+     */
+    private String schematronKey;
+
+    private ThreadLocal<Transformer> transformers;
     
-    private XPath xpath;
+    private ThreadLocal<XPath> xpath;
+
+    /**
+     * The rule reported for errors running the schematron validation itself.
+     */
+    static final String SCHEMATRON_ERROR = "schematron";
+
+    private static final String[] STYLESHEETS = new String[] { "ExtractSchFromXSD-2.xsl", "iso_dsdl_include.xsl", "iso_abstract_expand.xsl", "iso_svrl_for_xslt2.xsl" };
 
     public EmbeddedSchematronValidator(final String xsdUrl) throws TransformerException, IOException, SAXException {
-        final URL xsd = new URL(xsdUrl);
+        this(xsdUrl, SchematronCache.getDefault());
+    }
+
+    /**
+     * @param xsdUrl the URL of the XSD whose embedded schematron rules will be enforced
+     * @param cache a cache of previously generated schematron stylesheets, or null to
+     *              always generate the stylesheet
+     */
+    public EmbeddedSchematronValidator(final String xsdUrl, final SchematronCache cache) throws TransformerException, IOException, SAXException {
+        this(new URL(xsdUrl), null, false, cache);
+    }
+
+    /**
+     * Enforces the schematron rules of the given rule set, using its pre-generated
+     * stylesheet if it has one, and otherwise generating the stylesheet from its XSD
+     * without any network access for the resources it has local copies of.
+     * @param cache a cache of previously generated schematron stylesheets, or null to
+     *              always generate the stylesheet
+     */
+    public EmbeddedSchematronValidator(final RuleSet rules, final SchematronCache cache) throws TransformerException, IOException, SAXException {
+        this(rules.getSchemaUrl(), rules, true, cache);
+    }
+
+    private EmbeddedSchematronValidator(final URL xsd, final RuleSet rules, final boolean pregenerated, final SchematronCache cache) throws TransformerException, IOException, SAXException {
+        final byte[] xsdBytes;
+        try (InputStream in = xsd.openStream()) {
+            xsdBytes = IOUtils.toByteArray(in);
+        }
 
-        URIResolver r = new URIResolver() {
+        final URIResolver remote = new URIResolver() {
             @Override
             public Source resolve(String href, String base) throws TransformerException {
                 try {
@@ -69,7 +145,167 @@ public class EmbeddedSchematronValidator {
             }
         };
 
-        xpath = XPathFactory.newInstance().newXPath();
+        final URIResolver r = rules == null ? remote : (href, base) -> {
+            final URL local = rules.resolve(href);
+            if (local == null) {
+                return remote.resolve(href, base);
+            }
+            try {
+                return new StreamSource(local.openStream(), local.toString());
+            } catch (IOException e) {
+                throw new TransformerException(e);
+            }
+        };
+
+        xpath = ThreadLocal.withInitial(() -> createXPath());
+
+        SAXTransformerFactory f = (SAXTransformerFactory) TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
+        f.setURIResolver(r);
+        
+        factory = f;
+        if (pregenerated && rules.getSchematronUrl() != null) {
+            final byte[] stylesheet;
+            try (InputStream in = rules.getSchematronUrl().openStream()) {
+                stylesheet = IOUtils.toByteArray(in);
+            }
+            LOGGER.debug("Using pre-generated schematron stylesheet from " + rules + ".");
+            schematronKey = SchematronCache.computeKey(stylesheet);
+            rulesVersion = computeRulesVersion(xsd, xsdBytes, rules, schematronKey);
+            schematron = f.newTemplates(new StreamSource(new ByteArrayInputStream(stylesheet), rules.getSchematronUrl().toString()));
+            transformers = ThreadLocal.withInitial(this::newTransformer);
+            return;
+        }
+        final String key = SchematronCache.computeKey(xsdBytes, STYLESHEETS);
+        schematronKey = key;
+        rulesVersion = computeRulesVersion(xsd, xsdBytes, rules, key);
+        final File cached = cache == null ? null : cache.get(key);
+        if (cached != null) {
+            LOGGER.debug("Using cached schematron stylesheet " + cached.getName() + ".");
+            schematron = f.newTemplates(new StreamSource(cached));
+        } else {
+            final Node stylesheet = generateSchematronStylesheet(f, r, xsdBytes);
+            if (cache != null) {
+                cache.put(key, stylesheet);
+            }
+            schematron = f.newTemplates(new DOMSource(stylesheet));
+        }
+        transformers = ThreadLocal.withInitial(this::newTransformer);
+    }
+
+    private Transformer newTransformer() {
+        try {
+            return schematron.newTransformer();
+        } catch (TransformerException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Generates the schematron stylesheet for the given rule set (which may take some
+     * time) and writes it to the given file, from which it can be used by setting the
+     * "schematron" property of the rule set.
+     */
+    public static void compileSchematron(final RuleSet rules, final File stylesheet) throws TransformerException, IOException, SAXException {
+        final SchematronCache cache = new SchematronCache(Files.createTempDirectory("dplava-schematron").toFile());
+        try {
+            final EmbeddedSchematronValidator v = new EmbeddedSchematronValidator(rules.getSchemaUrl(), rules, false, cache);
+            Files.copy(cache.get(v.schematronKey).toPath(), stylesheet.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            FileUtils.deleteQuietly(cache.getDirectory());
+        }
+    }
+
+    /**
+     * Computes a hash that changes whenever any of the rules may have: that of the declared
+     * version of the rule set (if any), the XSD, every schema it imports, includes or
+     * redefines (however deeply, as resolved from the rule set) and the schematron stylesheet
+     * (identified by its key in the SchematronCache).  The schema validation depends on the
+     * imported schemas as much as on the XSD itself, so results cached under this hash must
+     * not outlive a change to any of them.
+     */
+    static String computeRulesVersion(final URL xsd, final byte[] xsdBytes, final RuleSet rules, final String schematronKey) {
+        final MessageDigest digest = Digests.newSha256();
+        if (rules != null) {
+            digest.update(("version:" + rules.getVersion() + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        digest.update(("schematron:" + schematronKey + "\n").getBytes(StandardCharsets.UTF_8));
+        digestSchema(xsd, xsdBytes, rules, digest, new HashSet<>());
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    private static void digestSchema(final URL url, final byte[] content, final RuleSet rules, final MessageDigest digest, final Set<String> visited) {
+        digest.update(("schema:" + url + " " + content.length + "\n").getBytes(StandardCharsets.UTF_8));
+        digest.update(content);
+        final NodeList references;
+        try {
+            final DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setNamespaceAware(true);
+            references = dbf.newDocumentBuilder().parse(new ByteArrayInputStream(content)).getElementsByTagNameNS(XMLConstants.W3C_XML_SCHEMA_NS_URI, "*");
+        } catch (ParserConfigurationException | SAXException | IOException e) {
+            // not a schema, so there's nothing more to include
+            return;
+        }
+        for (int i = 0; i < references.getLength(); i ++) {
+            final Element reference = (Element) references.item(i);
+            final String location = reference.getAttribute("schemaLocation");
+            if (location.isEmpty() || !Arrays.asList("import", "include", "redefine", "override").contains(reference.getLocalName())) {
+                continue;
+            }
+            URL resolved = rules == null ? null : rules.resolve(location);
+            try {
+                if (resolved == null) {
+                    resolved = new URL(url, location);
+                    if (rules != null && rules.resolve(resolved.toString()) != null) {
+                        resolved = rules.resolve(resolved.toString());
+                    }
+                }
+            } catch (MalformedURLException e) {
+                digest.update(("unresolvable:" + location + "\n").getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            if (!visited.add(resolved.toString())) {
+                continue;
+            }
+            try (InputStream in = resolved.openStream()) {
+                digestSchema(resolved, IOUtils.toByteArray(in), rules, digest, visited);
+            } catch (IOException e) {
+                LOGGER.debug("Unable to read " + resolved + " to compute the rules version.", e);
+                digest.update(("unavailable:" + resolved + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Performing schematron validation using rules embedded in an XSD schema involves
+     * running that schema through 4 transformations and using the resulting XSLT to
+     * transform the file to validate.  This method performs those 4 transformations.
+     */
+    private Node generateSchematronStylesheet(final SAXTransformerFactory f, final URIResolver r, final byte[] xsd) throws TransformerException, IOException, SAXException {
+        Templates t1 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream(STYLESHEETS[0])));
+        Templates t2 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream(STYLESHEETS[1])));
+        Templates t3 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream(STYLESHEETS[2])));
+        Templates t4 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream(STYLESHEETS[3])));
+
+        TransformerHandler th1 = f.newTransformerHandler(t1);
+        TransformerHandler th2 = f.newTransformerHandler(t2);
+        TransformerHandler th3 = f.newTransformerHandler(t3);
+        TransformerHandler th4 = f.newTransformerHandler(t4);
+        DOMResult domResult = new DOMResult();
+
+        th1.setResult(new SAXResult(th2));
+        th2.setResult(new SAXResult(th3));
+        th3.setResult(new SAXResult(th4));
+        th4.setResult(domResult);
+        Transformer t = f.newTransformer();
+        t.setURIResolver(r);
+
+        DocumentBuilder b = new DocumentBuilderImpl();
+        t.transform(new DOMSource(b.parse(new ByteArrayInputStream(xsd))), new SAXResult(th1));
+        return domResult.getNode();
+    }
+
+    private static XPath createXPath() {
+        final XPath xpath = XPathFactory.newInstance().newXPath();
         xpath.setNamespaceContext(new NamespaceContext() {
             @Override
             public String getNamespaceURI(String prefix) {
@@ -97,53 +333,121 @@ public class EmbeddedSchematronValidator {
                 return null;
             }
         });
+        return xpath;
+    }
 
-        SAXTransformerFactory f = (SAXTransformerFactory) TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
-        f.setURIResolver(r);
-        
-        /*
-         * Performing schematron validation using rules embedded in an XSD schema involves
-         * running that schema through 4 transformations and using the resulting XSLT to
-         * transform the file to validate.
-         */
-        Templates t1 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream("ExtractSchFromXSD-2.xsl")));
-        Templates t2 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream("iso_dsdl_include.xsl")));
-        Templates t3 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream("iso_abstract_expand.xsl")));
-        Templates t4 = f.newTemplates(new StreamSource(getClass().getClassLoader().getResourceAsStream("iso_svrl_for_xslt2.xsl")));
-
-        TransformerHandler th1 = f.newTransformerHandler(t1);
-        TransformerHandler th2 = f.newTransformerHandler(t2);
-        TransformerHandler th3 = f.newTransformerHandler(t3);
-        TransformerHandler th4 = f.newTransformerHandler(t4);
-        DOMResult domResult = new DOMResult();
-
-        th1.setResult(new SAXResult(th2));
-        th2.setResult(new SAXResult(th3));
-        th3.setResult(new SAXResult(th4));
-        th4.setResult(domResult);
-        Transformer t = f.newTransformer();
-        t.setURIResolver(r);
-
-        DocumentBuilder b = new DocumentBuilderImpl();
-        t.transform(new DOMSource(b.parse(xsd.openStream())), new SAXResult(th1));
+    /**
+     * @return a hash of the rule set version, the XSD, the schemas it imports and the
+     *         schematron stylesheet, which changes whenever the rules may have changed
+     *         (see computeRulesVersion())
+     */
+    public String getRulesVersion() {
+        return rulesVersion;
+    }
 
-        schematron = f.newTemplates(new DOMSource(domResult.getNode())).newTransformer();
+    /**
+     * Creates a ContentHandler that performs schematron validation on the document whose
+     * parse events it receives, adding any failed assertions to the given ErrorAggregator
+     * once the end of the document is reached.  Unlike validateXmlDocument(), this doesn't
+     * require a DOM to be built for the document or for the validation result: Saxon builds
+     * its own (compact) tree from the events, and the SVRL output is consumed as it's
+     * produced.
+     */
+    public ContentHandler newValidationHandler(final String filename, final ErrorAggregator errors) throws TransformerException {
+        final TransformerHandler h = factory.newTransformerHandler(schematron);
+        h.setResult(new SAXResult(new FailedAssertCollector(filename, errors)));
+        return h;
     }
 
     public void validateXmlDocument(String filename, Document d, ErrorAggregator errors) {
+        final XPath xpath = this.xpath.get();
         try {
             DOMResult result = new DOMResult();
-            schematron.transform(new DOMSource(d), result);
-            NodeList nl = (NodeList) xpath.evaluate("svrl:schematron-output/svrl:failed-assert/svrl:text", result.getNode(), XPathConstants.NODESET);
+            final Transformer t = transformers.get();
+            t.reset();
+            t.transform(new DOMSource(d), result);
+            NodeList nl = (NodeList) xpath.evaluate("svrl:schematron-output/svrl:failed-assert", result.getNode(), XPathConstants.NODESET);
             for (int i = 0; i < nl.getLength() ; i ++) {
-                errors.error(filename + " - " + (String) xpath.evaluate("text()", nl.item(i), XPathConstants.STRING));
+                final Element failedAssert = (Element) nl.item(i);
+                errors.error(filename, getRule(failedAssert.getAttribute("id"), failedAssert.getAttribute("test")),
+                        (String) xpath.evaluate("svrl:text/text()", failedAssert, XPathConstants.STRING));
             }
         } catch (TransformerException e) {
-            errors.error(filename + " - " + (e.getLocalizedMessage() == null ? "Error performing schematron validation." : e.getLocalizedMessage()));
+            errors.error(filename, SCHEMATRON_ERROR, e.getLocalizedMessage() == null ? "Error performing schematron validation." : e.getLocalizedMessage());
         } catch (XPathExpressionException e) {
             e.printStackTrace();
-            errors.error(filename + " - " + "Error parsing schematron validation result.");
+            errors.error(filename, SCHEMATRON_ERROR, "Error parsing schematron validation result.");
+        }
+
+    }
+
+    /**
+     * Identifies a failed assertion by its id, or by its test if it has none.
+     */
+    private static String getRule(final String id, final String test) {
+        return id != null && !id.isEmpty() ? id : (test == null || test.isEmpty() ? null : test);
+    }
+
+    /**
+     * Reports the text of each svrl:failed-assert in a stream of SVRL as an error.
+     * This is equivalent to evaluating "svrl:schematron-output/svrl:failed-assert/svrl:text/text()"
+     * against the SVRL document.
+     */
+    private static class FailedAssertCollector extends DefaultHandler {
+
+        private static final String SVRL = "http://purl.oclc.org/dsdl/svrl";
+
+        private String filename;
+
+        private ErrorAggregator errors;
+
+        private int depth;
+
+        private boolean inFailedAssert;
+
+        private String rule;
+
+        private StringBuilder text;
+
+        FailedAssertCollector(String filename, ErrorAggregator errors) {
+            this.filename = filename;
+            this.errors = errors;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            depth ++;
+            if (text != null) {
+                // only the first text node is reported
+                report();
+            } else if (depth == 2 && SVRL.equals(uri) && localName.equals("failed-assert")) {
+                inFailedAssert = true;
+                rule = getRule(attributes.getValue("id"), attributes.getValue("test"));
+            } else if (depth == 3 && inFailedAssert && SVRL.equals(uri) && localName.equals("text")) {
+                text = new StringBuilder();
+            }
         }
 
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (text != null) {
+                text.append(ch, start, length);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (depth == 3 && text != null) {
+                report();
+            } else if (depth == 2) {
+                inFailedAssert = false;
+            }
+            depth --;
+        }
+
+        private void report() {
+            errors.error(filename, rule, text.toString());
+            text = null;
+        }
     }
 }
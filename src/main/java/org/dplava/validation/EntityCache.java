@@ -0,0 +1,298 @@
+package org.dplava.validation;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.dplava.util.Digests;
+import org.dplava.util.Environment;
+import org.dplava.util.SharedHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A process-wide cache of the bodies of remote entities (mostly schemas) that are
+ * referenced while parsing.
+ *
+ * Entries are held in memory up to a maximum total size, with the least recently
+ * used entries evicted first, and are also written to a directory so that they
+ * survive restarts.  Entries older than the revalidation interval are revalidated
+ * with a conditional GET (using the ETag and Last-Modified headers from the last
+ * fetch), and the stale copy is used if the server can't be reached.  Concurrent
+ * requests for the same entity result in a single fetch, while requests for
+ * different entities don't block each other.
+ *
+ * This class is thread-safe.
+ */
+public class EntityCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EntityCache.class);
+
+    private static EntityCache DEFAULT;
+
+    private File directory;
+
+    private long maxSize;
+
+    private long revalidateAfter;
+
+    /**
+     * Synchronize on this to access it or currentSize.
+     */
+    private LinkedHashMap<String, Entry> entries;
+
+    private long currentSize;
+
+    private ConcurrentHashMap<String, CompletableFuture<Entry>> loading;
+
+    /**
+     * @param directory the directory in which entities are persisted, or null to only
+     *                  cache them in memory
+     * @param maxSize the maximum total number of characters held in memory
+     * @param revalidateAfterMinutes the age after which an entry is revalidated with the
+     *                               server before being used
+     */
+    public EntityCache(final File directory, final long maxSize, final long revalidateAfterMinutes) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.revalidateAfter = TimeUnit.MINUTES.toMillis(revalidateAfterMinutes);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.loading = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gets the shared cache, configured by the ENTITY_CACHE_DIR, ENTITY_CACHE_MAX_SIZE and
+     * ENTITY_CACHE_REVALIDATE_MINUTES environment variables.
+     */
+    public static synchronized EntityCache getDefault() {
+        if (DEFAULT == null) {
+            DEFAULT = new EntityCache(new File(Environment.getString("ENTITY_CACHE_DIR", new File(System.getProperty("java.io.tmpdir"), "dplava-entity-cache").getPath())),
+                    Environment.getLong("ENTITY_CACHE_MAX_SIZE", 16 * 1024 * 1024),
+                    Environment.getLong("ENTITY_CACHE_REVALIDATE_MINUTES", 24 * 60));
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Gets the body of the entity at the given URL, fetching or revalidating it if needed.
+     */
+    public String get(final URL url) throws IOException {
+        final String key = url.toString();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && !entry.isStale()) {
+            return entry.body;
+        }
+
+        final CompletableFuture<Entry> future = new CompletableFuture<>();
+        final CompletableFuture<Entry> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing).body;
+        }
+        try {
+            entry = load(url, entry);
+            future.complete(entry);
+            return entry.body;
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+            throw t;
+        } finally {
+            loading.remove(key);
+        }
+    }
+
+    private Entry load(final URL url, Entry entry) throws IOException {
+        final String key = url.toString();
+        if (entry == null) {
+            entry = readFromDisk(key);
+        }
+        if (entry == null || entry.isStale()) {
+            try {
+                entry = fetch(url, entry);
+                writeToDisk(key, entry);
+            } catch (IOException | RuntimeException e) {
+                if (entry == null) {
+                    throw e;
+                }
+                LOGGER.warn("Unable to revalidate " + key + ", using cached copy.", e);
+                entry.fetched = System.currentTimeMillis();
+            }
+        }
+        store(key, entry);
+        return entry;
+    }
+
+    private void store(final String key, final Entry entry) {
+        synchronized (entries) {
+            final Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                currentSize -= previous.body.length();
+            }
+            currentSize += entry.body.length();
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (currentSize > maxSize && it.hasNext()) {
+                final Map.Entry<String, Entry> eldest = it.next();
+                if (eldest.getValue() != entry) {
+                    currentSize -= eldest.getValue().body.length();
+                    it.remove();
+                    LOGGER.trace("Evicted " + eldest.getKey() + " from the entity cache.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the entity, sending a conditional request if there's a previous copy.
+     */
+    private Entry fetch(final URL url, final Entry previous) throws IOException {
+        final CloseableHttpClient client = SharedHttpClient.get();
+        HttpGet get = new HttpGet(url.toString());
+        if (previous != null && previous.etag != null) {
+            get.setHeader("If-None-Match", previous.etag);
+        }
+        if (previous != null && previous.lastModified != null) {
+            get.setHeader("If-Modified-Since", previous.lastModified);
+        }
+        try (CloseableHttpResponse response = client.execute(get)) {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status == 304 && previous != null) {
+                EntityUtils.consume(response.getEntity());
+                LOGGER.trace(url + " has not changed.");
+                previous.fetched = System.currentTimeMillis();
+                return previous;
+            } else if (status < 200 || status >= 300) {
+                throw new RuntimeException("Unexpected status (" + response.getStatusLine().getReasonPhrase() + ") when fetching " + url + "!");
+            } else {
+                final Entry entry = new Entry();
+                entry.body = EntityUtils.toString(response.getEntity());
+                entry.etag = getHeader(response, "ETag");
+                entry.lastModified = getHeader(response, "Last-Modified");
+                entry.fetched = System.currentTimeMillis();
+                LOGGER.debug("Fetched " + url + " for the entity cache.");
+                return entry;
+            }
+        }
+    }
+
+    private Entry readFromDisk(final String key) {
+        if (directory == null) {
+            return null;
+        }
+        final File body = new File(directory, Digests.sha256Hex(key) + ".body");
+        final File metadata = new File(directory, Digests.sha256Hex(key) + ".properties");
+        if (!body.isFile() || !metadata.isFile()) {
+            return null;
+        }
+        try (InputStream in = new FileInputStream(metadata)) {
+            final Properties p = new Properties();
+            p.load(in);
+            if (!key.equals(p.getProperty("url"))) {
+                return null;
+            }
+            final Entry entry = new Entry();
+            entry.body = FileUtils.readFileToString(body, StandardCharsets.UTF_8);
+            entry.etag = p.getProperty("etag");
+            entry.lastModified = p.getProperty("lastModified");
+            entry.fetched = Long.parseLong(p.getProperty("fetched", "0"));
+            return entry;
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.warn("Unable to read cached copy of " + key + ".", e);
+            return null;
+        }
+    }
+
+    private void writeToDisk(final String key, final Entry entry) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            directory.mkdirs();
+            final Properties p = new Properties();
+            p.setProperty("url", key);
+            p.setProperty("fetched", String.valueOf(entry.fetched));
+            if (entry.etag != null) {
+                p.setProperty("etag", entry.etag);
+            }
+            if (entry.lastModified != null) {
+                p.setProperty("lastModified", entry.lastModified);
+            }
+            final File tmpBody = File.createTempFile(Digests.sha256Hex(key), ".tmp", directory);
+            final File tmpMetadata = File.createTempFile(Digests.sha256Hex(key), ".tmp", directory);
+            try {
+                FileUtils.writeStringToFile(tmpBody, entry.body, StandardCharsets.UTF_8);
+                try (OutputStream out = new FileOutputStream(tmpMetadata)) {
+                    p.store(out, null);
+                }
+                Files.move(tmpBody.toPath(), new File(directory, Digests.sha256Hex(key) + ".body").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(tmpMetadata.toPath(), new File(directory, Digests.sha256Hex(key) + ".properties").toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmpBody.delete();
+                tmpMetadata.delete();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to persist cached copy of " + key + ".", e);
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static String getHeader(final CloseableHttpResponse response, final String name) {
+        final Header h = response.getFirstHeader(name);
+        return h == null ? null : h.getValue();
+    }
+
+    private class Entry {
+
+        private String body;
+
+        private String etag;
+
+        private String lastModified;
+
+        /**
+         * The time at which this entry was last fetched or revalidated.
+         */
+        private volatile long fetched;
+
+        private boolean isStale() {
+            return System.currentTimeMillis() - fetched > revalidateAfter;
+        }
+    }
+}
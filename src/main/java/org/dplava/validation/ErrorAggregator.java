@@ -1,44 +1,152 @@
 package org.dplava.validation;
 
+import org.dplava.util.Environment;
+import org.dplava.validation.ValidationError.Severity;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by md5wz on 3/1/18.
+ *
+ * Methods that read or add errors are synchronized so that a single instance may
+ * be shared between threads.  Because the current file is tracked per instance,
+ * concurrent validations should each use their own ErrorAggregator and combine
+ * them with addAll() once complete.
+ *
+ * Each error is recorded as a ValidationError.  Only the first maxErrorsPerFile
+ * problems with any one file are recorded; the rest are only counted, so that a
+ * badly broken file can't exhaust the heap.  An ErrorAggregator created by spilling()
+ * writes the errors it records to a temporary file rather than holding them in
+ * memory (and must be closed to remove it), so that the errors for a whole commit
+ * take the same memory however many there are.  See ErrorRenderer for ways to write
+ * the errors out without holding them all in memory.
  */
-public class ErrorAggregator implements ErrorHandler {
+public class ErrorAggregator implements ErrorHandler, Closeable {
 
-    List<String> warnings = new ArrayList<>();
+    private static final int DEFAULT_MAX_ERRORS_PER_FILE = Environment.getInt("MAX_ERRORS_PER_FILE", 1000);
 
-    List<String> errors = new ArrayList<>();
+    /**
+     * Matches the error keys with which Xerces prefixes its messages, such as "cvc-complex-type.2.4.a: ".
+     */
+    private static final Pattern RULE = Pattern.compile("^([A-Za-z][\\w-]*(?:\\.[\\w-]+)+): ");
 
-    List<String> fatals = new ArrayList<>();
+    /**
+     * The errors recorded in memory, or null if they're being spilled.
+     */
+    private List<ValidationError> recorded;
+
+    private File spillFile;
+
+    private Writer spill;
+
+    private int maxErrorsPerFile;
+
+    /**
+     * The number of problems of each severity found (whether or not recorded).
+     */
+    private int[] counts = new int[Severity.values().length];
+
+    /**
+     * The number of problems of each severity found but not recorded.
+     */
+    private int[] suppressedCounts = new int[Severity.values().length];
+
+    /**
+     * The number of problems recorded for each file.
+     */
+    private Map<String, Integer> fileCounts = new HashMap<>();
+
+    /**
+     * The number of problems not recorded for each file.
+     */
+    private Map<String, Integer> suppressed = new LinkedHashMap<>();
+
+    private Set<String> invalidFiles = new HashSet<>();
+
+    private Map<String, Integer> ruleCounts = new TreeMap<>();
 
     private String currentFile;
 
-    public boolean isValid() {
-        return errors.isEmpty() && fatals.isEmpty();
+    public ErrorAggregator() {
+        this(DEFAULT_MAX_ERRORS_PER_FILE);
     }
 
-    public String getErrors() {
-        StringBuffer sb = new StringBuffer();
-        for (String fatal : fatals) {
-            if (sb.length() > 0) {
-                sb.append("\n");
-            }
-            sb.append("Fatal: " + fatal);
-        }
-        for (String error : errors) {
-            if (sb.length() > 0) {
-                sb.append("\n");
-            }
-            sb.append("Error: " + error);
+    /**
+     * @param maxErrorsPerFile the number of problems recorded for any one file, beyond
+     *                         which they're only counted
+     */
+    public ErrorAggregator(final int maxErrorsPerFile) {
+        this.maxErrorsPerFile = maxErrorsPerFile;
+        this.recorded = new ArrayList<>();
+    }
+
+    private ErrorAggregator(final File spillFile) throws IOException {
+        this.maxErrorsPerFile = DEFAULT_MAX_ERRORS_PER_FILE;
+        this.spillFile = spillFile;
+        this.spill = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spillFile), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Creates an ErrorAggregator that writes the errors it records to a temporary file,
+     * which is removed when it's closed.
+     */
+    public static ErrorAggregator spilling() throws IOException {
+        final File f = File.createTempFile("dplava-errors", ".tsv");
+        f.deleteOnExit();
+        return new ErrorAggregator(f);
+    }
+
+    public synchronized boolean isValid() {
+        return counts[Severity.ERROR.ordinal()] == 0 && counts[Severity.FATAL.ordinal()] == 0;
+    }
+
+    /**
+     * @return true if no warnings, errors or fatal errors have been recorded
+     */
+    public synchronized boolean isEmpty() {
+        return isValid() && counts[Severity.WARNING.ordinal()] == 0;
+    }
+
+    public synchronized String getErrors() {
+        return String.join("\n", getMessages());
+    }
+
+    /**
+     * @return each fatal error and error, formatted as in getErrors()
+     */
+    public synchronized List<String> getMessages() {
+        final List<String> messages = new ArrayList<>();
+        try {
+            ErrorRenderer.writeText(this, line -> messages.add(line));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        return sb.toString();
+        return messages;
     }
 
     public void setCurrentFile(final String filename) {
@@ -47,31 +155,240 @@ public class ErrorAggregator implements ErrorHandler {
 
     @Override
     public void warning(SAXParseException exception) throws SAXException {
-        addError(exception, warnings);
+        add(fromException(Severity.WARNING, exception));
     }
 
     @Override
     public void error(SAXParseException exception) throws SAXException {
-        addError(exception, errors);
+        add(fromException(Severity.ERROR, exception));
     }
 
     @Override
     public void fatalError(SAXParseException exception) throws SAXException {
-        addError(exception, fatals);
+        add(fromException(Severity.FATAL, exception));
     }
 
     public void error(String message) {
-        this.errors.add(message);
+        add(new ValidationError(Severity.ERROR, null, -1, -1, null, message));
+    }
+
+    /**
+     * Records an error that isn't tied to a location within a file.
+     * @param file the file concerned, or null if none
+     * @param rule an identifier for the rule that was broken, or null if unknown
+     */
+    public void error(String file, String rule, String message) {
+        add(new ValidationError(Severity.ERROR, file, -1, -1, rule, message));
     }
 
-    private void addError(SAXParseException exception, List<String> list) {
-        list.add((currentFile == null ? "" : currentFile + " - ") + (exception.getLocalizedMessage() != null
+    /**
+     * Records an error, unless too many have already been recorded for its file.
+     */
+    public synchronized void add(final ValidationError error) {
+        final Severity severity = error.getSeverity();
+        counts[severity.ordinal()] ++;
+        if (error.getFile() != null) {
+            if (severity != Severity.WARNING) {
+                invalidFiles.add(error.getFile());
+            }
+            final int fileCount = fileCounts.merge(error.getFile(), 1, Integer::sum);
+            if (fileCount > maxErrorsPerFile) {
+                suppressedCounts[severity.ordinal()] ++;
+                suppressed.merge(error.getFile(), 1, Integer::sum);
+                return;
+            }
+        }
+        if (error.getRule() != null) {
+            ruleCounts.merge(error.getRule(), 1, Integer::sum);
+        }
+        if (recorded != null) {
+            recorded.add(error);
+        } else {
+            try {
+                writeSpilled(error);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Appends all of the warnings, errors and fatal errors recorded by another
+     * ErrorAggregator to this one.
+     */
+    public void addAll(ErrorAggregator other) {
+        final List<ValidationError> otherErrors = new ArrayList<>();
+        final int[] otherSuppressedCounts;
+        final Map<String, Integer> otherSuppressed;
+        synchronized (other) {
+            try {
+                other.forEach(otherErrors::add);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            otherSuppressedCounts = other.suppressedCounts.clone();
+            otherSuppressed = new LinkedHashMap<>(other.suppressed);
+        }
+        synchronized (this) {
+            for (ValidationError error : otherErrors) {
+                add(error);
+            }
+            for (Severity severity : Severity.values()) {
+                counts[severity.ordinal()] += otherSuppressedCounts[severity.ordinal()];
+                suppressedCounts[severity.ordinal()] += otherSuppressedCounts[severity.ordinal()];
+            }
+            for (Map.Entry<String, Integer> entry : otherSuppressed.entrySet()) {
+                suppressed.merge(entry.getKey(), entry.getValue(), Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * A consumer of recorded errors, which may throw an IOException.
+     */
+    public interface ErrorVisitor {
+        void visit(ValidationError error) throws IOException;
+    }
+
+    /**
+     * Passes each recorded error (of every severity) to the given visitor in the order
+     * they were recorded, reading them back from disk if they've been spilled.
+     */
+    public synchronized void forEach(final ErrorVisitor visitor) throws IOException {
+        if (recorded != null) {
+            for (ValidationError error : recorded) {
+                visitor.visit(error);
+            }
+            return;
+        }
+        spill.flush();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(spillFile), StandardCharsets.UTF_8))) {
+            for (String line = r.readLine(); line != null; line = r.readLine()) {
+                visitor.visit(readSpilled(line));
+            }
+        }
+    }
+
+    /**
+     * @return the number of problems of the given severity that were found, including
+     *         any that weren't recorded
+     */
+    public synchronized int getCount(final Severity severity) {
+        return counts[severity.ordinal()];
+    }
+
+    /**
+     * @return the number of problems that were recorded (and so are passed to forEach())
+     */
+    public synchronized int getRecordedCount() {
+        int total = 0;
+        for (Severity severity : Severity.values()) {
+            total += counts[severity.ordinal()] - suppressedCounts[severity.ordinal()];
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of problems that were found but not recorded, because too many
+     *         had already been recorded for their files
+     */
+    public synchronized int getSuppressedCount() {
+        int total = 0;
+        for (int count : suppressedCounts) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of problems that weren't recorded, for each file that had any
+     */
+    public synchronized Map<String, Integer> getSuppressedCounts() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(suppressed));
+    }
+
+    /**
+     * @return the number of files with at least one error or fatal error
+     */
+    public synchronized int getInvalidFileCount() {
+        return invalidFiles.size();
+    }
+
+    /**
+     * @return the number of recorded problems that broke each known rule
+     */
+    public synchronized Map<String, Integer> getRuleCounts() {
+        return Collections.unmodifiableMap(new TreeMap<>(ruleCounts));
+    }
+
+    /**
+     * Removes the temporary file to which errors were spilled, if any.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+            spillFile.delete();
+        }
+    }
+
+    private ValidationError fromException(final Severity severity, final SAXParseException exception) {
+        final String message = exception.getLocalizedMessage() != null
                 ? exception.getLocalizedMessage()
                 : (exception.getCause() != null
                     ? (exception.getCause().getLocalizedMessage() == null
                         ? exception.getCause().getClass().getName()
                         : exception.getCause().getLocalizedMessage())
-                    : exception.getClass().getName())));
+                    : exception.getClass().getName());
+        final Matcher m = RULE.matcher(message);
+        return new ValidationError(severity, currentFile, exception.getLineNumber(), exception.getColumnNumber(), m.find() ? m.group(1) : null, message);
+    }
+
+    private void writeSpilled(final ValidationError error) throws IOException {
+        spill.write(error.getSeverity().name());
+        spill.write('\t');
+        spill.write(escape(error.getFile()));
+        spill.write('\t');
+        spill.write(String.valueOf(error.getLine()));
+        spill.write('\t');
+        spill.write(String.valueOf(error.getColumn()));
+        spill.write('\t');
+        spill.write(escape(error.getRule()));
+        spill.write('\t');
+        spill.write(escape(error.getMessage()));
+        spill.write('\n');
+    }
+
+    private static ValidationError readSpilled(final String line) {
+        final String[] fields = line.split("\t", -1);
+        return new ValidationError(Severity.valueOf(fields[0]), unescape(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), unescape(fields[4]), unescape(fields[5]));
     }
-}
 
+    /**
+     * Escapes a value so that it contains no tabs or line breaks, representing null as
+     * the empty string.
+     */
+    private static String escape(final String value) {
+        if (value == null) {
+            return "";
+        }
+        return "=" + value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(final String value) {
+        if (value.isEmpty()) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < value.length(); i ++) {
+            final char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                final char next = value.charAt(++ i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,287 @@
+package org.dplava.validation;
+
+import org.dplava.validation.ValidationError.Severity;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Writes the errors held by an ErrorAggregator as text, JSON or JUnit XML.  The errors
+ * are streamed from the ErrorAggregator (see ErrorAggregator.forEach()) so that even
+ * a report of millions of errors can be written without holding it in memory.
+ */
+public class ErrorRenderer {
+
+    private static final String NO_FILE = "(repository)";
+
+    /**
+     * A consumer of lines of a report, which may throw an IOException.
+     */
+    public interface LineWriter {
+        void writeLine(String line) throws IOException;
+    }
+
+    /**
+     * Writes each fatal error and then each error, one per line and in the form
+     * "Error: a.xml - message", followed by a line for each file for which some
+     * errors weren't recorded.  Warnings aren't included.
+     */
+    public static void writeText(final ErrorAggregator errors, final LineWriter out) throws IOException {
+        synchronized (errors) {
+            for (Severity severity : new Severity[] { Severity.FATAL, Severity.ERROR }) {
+                errors.forEach(e -> {
+                    if (e.getSeverity() == severity) {
+                        out.writeLine(e.toString());
+                    }
+                });
+            }
+            for (Map.Entry<String, Integer> entry : errors.getSuppressedCounts().entrySet()) {
+                out.writeLine(Severity.ERROR.getLabel() + ": " + entry.getKey() + " - " + entry.getValue() + " further problems not shown.");
+            }
+        }
+    }
+
+    /**
+     * Writes the same text as ErrorAggregator.getErrors() to the given Writer.
+     */
+    public static void writeText(final ErrorAggregator errors, final Writer out) throws IOException {
+        final boolean[] first = new boolean[] { true };
+        writeText(errors, line -> {
+            if (!first[0]) {
+                out.write('\n');
+            }
+            out.write(line);
+            first[0] = false;
+        });
+        out.flush();
+    }
+
+    /**
+     * Writes a JSON object of the form:
+     * <pre>
+     * {
+     *   "summary": { "fatalErrors": 0, "errors": 1, "warnings": 0, "invalidFiles": 1, "suppressed": 0, "rules": { "dcterms:title": 1 } },
+     *   "errors": [ { "severity": "error", "file": "a.xml", "line": 3, "column": 14, "rule": "dcterms:title", "message": "..." } ]
+     * }
+     * </pre>
+     * where the errors include warnings, and file, line, column and rule are only
+     * present when known.
+     */
+    public static void writeJson(final ErrorAggregator errors, final OutputStream out) throws IOException {
+        try (JsonGenerator json = Json.createGenerator(out)) {
+            writeJson(errors, json);
+        }
+    }
+
+    /**
+     * Writes the JSON object described by writeJson(ErrorAggregator, OutputStream) as
+     * the next value of the given generator.
+     */
+    public static void writeJson(final ErrorAggregator errors, final JsonGenerator json) throws IOException {
+        synchronized (errors) {
+            json.writeStartObject();
+            writeSummary(errors, json);
+            json.writeStartArray("errors");
+            errors.forEach(e -> writeError(e, json));
+            json.writeEnd();
+            json.writeEnd();
+        }
+    }
+
+    /**
+     * Writes the counts of problems found, as the "summary" member of the object the
+     * given generator is currently writing.
+     */
+    public static void writeSummary(final ErrorAggregator errors, final JsonGenerator json) {
+        synchronized (errors) {
+            json.writeStartObject("summary");
+            json.write("fatalErrors", errors.getCount(Severity.FATAL));
+            json.write("errors", errors.getCount(Severity.ERROR));
+            json.write("warnings", errors.getCount(Severity.WARNING));
+            json.write("invalidFiles", errors.getInvalidFileCount());
+            json.write("suppressed", errors.getSuppressedCount());
+            json.writeStartObject("rules");
+            for (Map.Entry<String, Integer> rule : errors.getRuleCounts().entrySet()) {
+                json.write(rule.getKey(), rule.getValue());
+            }
+            json.writeEnd();
+            json.writeEnd();
+        }
+    }
+
+    /**
+     * Writes a single error as the next value of the given generator.
+     */
+    public static void writeError(final ValidationError e, final JsonGenerator json) {
+        json.writeStartObject();
+        json.write("severity", e.getSeverity().name().toLowerCase());
+        if (e.getFile() != null) {
+            json.write("file", e.getFile());
+        }
+        if (e.getLine() >= 0) {
+            json.write("line", e.getLine());
+        }
+        if (e.getColumn() >= 0) {
+            json.write("column", e.getColumn());
+        }
+        if (e.getRule() != null) {
+            json.write("rule", e.getRule());
+        }
+        json.write("message", e.getMessage());
+        json.writeEnd();
+    }
+
+    /**
+     * A test case of a JUnit report: a file, and the number of the recorded problems
+     * (of every severity) that concern it.
+     */
+    public static class TestCase {
+
+        private String name;
+
+        private int problemCount;
+
+        public TestCase(final String name, final int problemCount) {
+            this.name = name;
+            this.problemCount = problemCount;
+        }
+    }
+
+    /**
+     * Writes a JUnit XML report with a failing test case for each file with errors, as
+     * grouped by writeJUnit(ErrorAggregator, String, List, OutputStream) when each run
+     * of consecutive problems concerning the same file is taken to be a test case.
+     */
+    public static void writeJUnit(final ErrorAggregator errors, final String suiteName, final OutputStream out) throws IOException {
+        synchronized (errors) {
+            final List<TestCase> testCases = new ArrayList<>();
+            final String[] previous = new String[1];
+            final int[] count = new int[1];
+            errors.forEach(e -> {
+                final String file = e.getFile() == null ? NO_FILE : e.getFile();
+                if (!file.equals(previous[0]) && previous[0] != null) {
+                    testCases.add(new TestCase(previous[0], count[0]));
+                    count[0] = 0;
+                }
+                previous[0] = file;
+                count[0] ++;
+            });
+            if (previous[0] != null) {
+                testCases.add(new TestCase(previous[0], count[0]));
+            }
+            writeJUnit(errors, suiteName, testCases, out);
+        }
+    }
+
+    /**
+     * Writes a JUnit XML report with the given test cases, in order, which take the
+     * recorded problems in turn; any problems left over (which don't concern a single
+     * file) make up a final test case named "(repository)".  Errors become failures (of
+     * the type of the rule that was broken) and fatal errors become errors; warnings
+     * aren't included.  The suite's failures and errors are the numbers of test cases
+     * that failed or had errors (those with both counting as errors), as JUnit
+     * consumers expect.
+     */
+    public static void writeJUnit(final ErrorAggregator errors, final String suiteName, final List<TestCase> testCases, final OutputStream out) throws IOException {
+        synchronized (errors) {
+            // a first pass to find the worst problem of each test case, which must be
+            // counted up front
+            final Severity[] worst = new Severity[testCases.size() + 1];
+            final int[] position = new int[2];
+            errors.forEach(e -> {
+                final int testCase = nextTestCase(testCases, position);
+                if (e.getSeverity() != Severity.WARNING && (worst[testCase] == null || e.getSeverity().compareTo(worst[testCase]) > 0)) {
+                    worst[testCase] = e.getSeverity();
+                }
+            });
+            final boolean repositoryTestCase = position[0] >= testCases.size() && position[1] > 0;
+            int failures = 0;
+            int fatalErrors = 0;
+            for (Severity severity : worst) {
+                if (severity == Severity.ERROR) {
+                    failures ++;
+                } else if (severity == Severity.FATAL) {
+                    fatalErrors ++;
+                }
+            }
+            try {
+                final XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+                xml.writeStartDocument("UTF-8", "1.0");
+                xml.writeStartElement("testsuite");
+                xml.writeAttribute("name", suiteName);
+                xml.writeAttribute("tests", String.valueOf(testCases.size() + (repositoryTestCase ? 1 : 0)));
+                xml.writeAttribute("failures", String.valueOf(failures));
+                xml.writeAttribute("errors", String.valueOf(fatalErrors));
+                final int[] written = new int[1];
+                position[0] = 0;
+                position[1] = 0;
+                errors.forEach(e -> {
+                    final int testCase = nextTestCase(testCases, position);
+                    try {
+                        while (written[0] <= testCase) {
+                            if (written[0] > 0) {
+                                xml.writeEndElement();
+                            }
+                            xml.writeStartElement("testcase");
+                            xml.writeAttribute("classname", suiteName);
+                            xml.writeAttribute("name", written[0] < testCases.size() ? testCases.get(written[0]).name : NO_FILE);
+                            written[0] ++;
+                        }
+                        if (e.getSeverity() != Severity.WARNING) {
+                            final String file = e.getFile() == null ? NO_FILE : e.getFile();
+                            xml.writeStartElement(e.getSeverity() == Severity.FATAL ? "error" : "failure");
+                            xml.writeAttribute("message", e.getMessage());
+                            xml.writeAttribute("type", Objects.toString(e.getRule(), "validation"));
+                            xml.writeCharacters(e.getLine() >= 0 ? file + ":" + e.getLine() + ":" + e.getColumn() + ": " + e.getMessage() : e.toString());
+                            xml.writeEndElement();
+                        }
+                    } catch (XMLStreamException ex) {
+                        throw new IOException(ex);
+                    }
+                });
+                // test cases without any problems follow the last with some
+                for (; written[0] < testCases.size(); written[0] ++) {
+                    if (written[0] > 0) {
+                        xml.writeEndElement();
+                    }
+                    xml.writeStartElement("testcase");
+                    xml.writeAttribute("classname", suiteName);
+                    xml.writeAttribute("name", testCases.get(written[0]).name);
+                }
+                if (written[0] > 0) {
+                    xml.writeEndElement();
+                }
+                xml.writeEndElement();
+                xml.writeEndDocument();
+                xml.flush();
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /**
+     * Finds the test case that the next problem belongs to, given the position reached
+     * so far (the index of a test case, and the number of its problems already taken),
+     * which is advanced past that problem.
+     * @return the index of the test case, or testCases.size() for the "(repository)" one
+     */
+    private static int nextTestCase(final List<TestCase> testCases, final int[] position) {
+        while (position[0] < testCases.size() && position[1] >= testCases.get(position[0]).problemCount) {
+            position[0] ++;
+            position[1] = 0;
+        }
+        position[1] ++;
+        return position[0];
+    }
+}
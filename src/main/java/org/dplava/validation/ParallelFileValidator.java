@@ -0,0 +1,309 @@
+package org.dplava.validation;
+
+import org.dplava.util.Metrics;
+import org.dplava.validation.ValidationError.Severity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans the validation of a list of files (or other RecordSources) out across a
+ * ForkJoinPool.  Each file is validated into its own ErrorAggregator so that no state is shared between
+ * threads, and the per-file results are merged back in the order the files were
+ * given so that the resulting report is identical to that of a sequential run.
+ * The RecordFacts captured from each file are returned in the same way, so that
+ * checks across records can be made without reading the files again.
+ *
+ * If a ValidationResultCache is supplied, records whose content has already been
+ * validated against the current rules have their stored results replayed instead.
+ *
+ * Validation may stop early under a TerminationPolicy, in which case the records not
+ * yet validated are skipped and a single error explaining why is reported first.
+ *
+ * This class is thread-safe as long as the supplied DPLAVAMetadataValidator is.
+ */
+public class ParallelFileValidator {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ParallelFileValidator.class);
+
+    private static final Metrics.Histogram FILE_VALIDATION = Metrics.getDefault().histogram("dplava_file_validation_seconds", "Time spent validating each file, including reading it.");
+
+    /**
+     * Ranges of files smaller than this are validated directly rather than split
+     * further.  Individual files are expensive enough that there's little to be
+     * gained from larger leaves.
+     */
+    private static final int THRESHOLD = 1;
+
+    private ForkJoinPool pool;
+
+    private ValidationResultCache cache;
+
+    public ParallelFileValidator(final ForkJoinPool pool) {
+        this(pool, null);
+    }
+
+    /**
+     * @param cache a cache of results to consult and update, or null to validate every record
+     */
+    public ParallelFileValidator(final ForkJoinPool pool, final ValidationResultCache cache) {
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    /**
+     * Validates every file in the list, adding any errors to the given ErrorAggregator
+     * in the order of the list.
+     * @return the RecordFacts captured from each file, in the order of the list (with
+     *         null for any file that couldn't be parsed)
+     */
+    public List<RecordFacts> validateFiles(final DPLAVAMetadataValidator v, final List<File> files, final ErrorAggregator errors) {
+        final List<RecordSource> records = new ArrayList<>();
+        for (File file : files) {
+            records.add(RecordSource.forFile(file));
+        }
+        return validateRecords(v, records, errors);
+    }
+
+    /**
+     * Validates every record in the list, adding any errors to the given ErrorAggregator
+     * in the order of the list.
+     * @return the RecordFacts captured from each record, in the order of the list (with
+     *         null for any record that couldn't be parsed)
+     */
+    public List<RecordFacts> validateRecords(final DPLAVAMetadataValidator v, final List<RecordSource> records, final ErrorAggregator errors) {
+        return validateRecords(v, records, errors, TerminationPolicy.NONE);
+    }
+
+    /**
+     * Validates the records in the list, adding any errors to the given ErrorAggregator
+     * in the order of the list, unless the given policy calls for validation to stop
+     * early.  Under the fail-fast policy the errors found before validation stopped are
+     * reported.  Under the sampling policy the sampled records are validated first; if
+     * too many are invalid, the estimated number of invalid records is reported along
+     * with the errors of a few of the invalid sampled records as examples.
+     * @return the RecordFacts captured from each record, in the order of the list (with
+     *         null for any record that couldn't be parsed or wasn't validated)
+     */
+    public List<RecordFacts> validateRecords(final DPLAVAMetadataValidator v, final List<RecordSource> records, final ErrorAggregator errors, final TerminationPolicy policy) {
+        final ErrorAggregator[] results = new ErrorAggregator[records.size()];
+        final RecordFacts[] facts = new RecordFacts[records.size()];
+        final Progress progress = new Progress(policy.getMaxErrors());
+        final boolean[] sampled = new boolean[records.size()];
+        if (policy.shouldSample(records.size())) {
+            final int[] sample = policy.sample(records.size());
+            pool.invoke(new ValidateRange(v, cache, records, sample, results, facts, 0, sample.length, progress));
+            final List<ErrorAggregator> invalid = new ArrayList<>();
+            for (int i : sample) {
+                sampled[i] = true;
+                if (results[i] != null && !results[i].isValid()) {
+                    invalid.add(results[i]);
+                }
+            }
+            if (!progress.isStopped() && policy.isSampleFailureRateExceeded(invalid.size(), sample.length)) {
+                countEarlyTermination("sampling");
+                final long estimate = Math.round(invalid.size() * (double) records.size() / sample.length);
+                errors.error(null, "sampling", "Validation stopped after a random sample of " + sample.length + " of the " + records.size()
+                        + " files: " + invalid.size() + " (" + Math.round(invalid.size() * 100.0 / sample.length) + "%) were invalid, so an estimated "
+                        + estimate + " files are invalid.  The errors in " + Math.min(invalid.size(), TerminationPolicy.EXAMPLE_RECORDS)
+                        + " of the invalid sampled files follow as examples.");
+                for (ErrorAggregator result : invalid.subList(0, Math.min(invalid.size(), TerminationPolicy.EXAMPLE_RECORDS))) {
+                    errors.addAll(result);
+                }
+                Arrays.fill(facts, null);
+                return Arrays.asList(facts);
+            }
+        }
+        if (!progress.isStopped()) {
+            final int[] remaining = new int[records.size()];
+            int count = 0;
+            for (int i = 0; i < records.size(); i ++) {
+                if (!sampled[i]) {
+                    remaining[count ++] = i;
+                }
+            }
+            pool.invoke(new ValidateRange(v, cache, records, remaining, results, facts, 0, count, progress));
+        }
+        // the limit may be reached by the last record, in which case nothing was skipped
+        if (progress.isStopped() && progress.getValidatedCount() < records.size()) {
+            countEarlyTermination("fail_fast");
+            errors.error(null, "fail-fast", "Validation stopped after " + progress.getErrorCount() + " errors were found, with "
+                    + progress.getValidatedCount() + " of the " + records.size() + " files validated.");
+        }
+        for (ErrorAggregator result : results) {
+            if (result != null) {
+                errors.addAll(result);
+            }
+        }
+        return Arrays.asList(facts);
+    }
+
+    /**
+     * Validates every record in the list, keeping the errors of each record separate.
+     * @param errors a list to which an ErrorAggregator holding the errors of each record
+     *               is added, in the order of the list
+     * @return the RecordFacts captured from each record, in the order of the list (with
+     *         null for any record that couldn't be parsed)
+     */
+    public List<RecordFacts> validateEach(final DPLAVAMetadataValidator v, final List<RecordSource> records, final List<ErrorAggregator> errors) {
+        final ErrorAggregator[] results = new ErrorAggregator[records.size()];
+        final RecordFacts[] facts = new RecordFacts[records.size()];
+        pool.invoke(new ValidateRange(v, cache, records, null, results, facts, 0, records.size(), new Progress(0)));
+        for (ErrorAggregator result : results) {
+            errors.add(result == null ? new ErrorAggregator() : result);
+        }
+        return Arrays.asList(facts);
+    }
+
+    /**
+     * Validates a single record, or replays the cached result of validating identical
+     * content, recording any unexpected exceptions as errors.  Results are only cached
+     * when the validator enforces a known version of the rules and the record could be
+     * parsed without any unexpected exception.
+     * @param errors an ErrorAggregator that holds only the errors for this record
+     */
+    static RecordFacts validateRecord(final DPLAVAMetadataValidator v, final ValidationResultCache cache, final RecordSource record, final ErrorAggregator errors) {
+        final String contentId = cache == null ? null : record.getContentId();
+        final String rulesVersion = contentId == null ? null : v.getRulesVersion();
+        if (rulesVersion != null) {
+            final RecordFacts cached = cache.replay(contentId, rulesVersion, record.getName(), errors);
+            if (cached != null) {
+                LOGGER.trace("Using cached result for " + record.getPath());
+                countFile("cached");
+                return cached;
+            }
+        }
+        final long start = System.currentTimeMillis();
+        final RecordFacts facts;
+        try (InputStream in = record.openStream()) {
+            LOGGER.trace("Validating " + record.getPath());
+            final InputSource source = new InputSource(in);
+            source.setSystemId(record.getSystemId());
+            facts = v.validate(record.getName(), source, errors);
+        } catch (Throwable t) {
+            errors.error(null, "system", "System Error (" + (t.getLocalizedMessage() == null ? t.getClass().getName() : t.getLocalizedMessage()) + ")");
+            countFile("error");
+            return null;
+        }
+        FILE_VALIDATION.observeSince(start);
+        countFile(errors.isEmpty() ? "valid" : "invalid");
+        if (rulesVersion != null && facts != null) {
+            cache.store(contentId, rulesVersion, record.getName(), errors, facts);
+        }
+        return facts;
+    }
+
+    private static void countFile(final String result) {
+        Metrics.getDefault().counter("dplava_files_validated_total", "Files validated, by result (\"cached\" if a stored result was used).", "result", result).increment();
+    }
+
+    private static void countEarlyTermination(final String policy) {
+        Metrics.getDefault().counter("dplava_early_terminations_total", "Validations stopped early, by policy.", "policy", policy).increment();
+    }
+
+    /**
+     * Tracks the errors found by the tasks validating a set of records, and whether
+     * they should stop.
+     */
+    private static class Progress {
+
+        private int maxErrors;
+
+        private AtomicInteger errorCount = new AtomicInteger();
+
+        private AtomicInteger validatedCount = new AtomicInteger();
+
+        private volatile boolean stopped;
+
+        Progress(final int maxErrors) {
+            this.maxErrors = maxErrors;
+        }
+
+        void validated(final ErrorAggregator errors) {
+            validatedCount.incrementAndGet();
+            final int found = errors.getCount(Severity.ERROR) + errors.getCount(Severity.FATAL);
+            if (found > 0 && errorCount.addAndGet(found) >= maxErrors && maxErrors > 0) {
+                stopped = true;
+            }
+        }
+
+        boolean isStopped() {
+            return stopped;
+        }
+
+        int getErrorCount() {
+            return errorCount.get();
+        }
+
+        int getValidatedCount() {
+            return validatedCount.get();
+        }
+    }
+
+    private static class ValidateRange extends RecursiveAction {
+
+        private DPLAVAMetadataValidator v;
+
+        private ValidationResultCache cache;
+
+        private List<RecordSource> records;
+
+        /**
+         * The indices of the records to validate, or null to validate them all.
+         */
+        private int[] indices;
+
+        private ErrorAggregator[] results;
+
+        private RecordFacts[] facts;
+
+        private int start;
+
+        private int end;
+
+        private Progress progress;
+
+        ValidateRange(DPLAVAMetadataValidator v, ValidationResultCache cache, List<RecordSource> records, int[] indices, ErrorAggregator[] results, RecordFacts[] facts, int start, int end, Progress progress) {
+            this.v = v;
+            this.cache = cache;
+            this.records = records;
+            this.indices = indices;
+            this.results = results;
+            this.facts = facts;
+            this.start = start;
+            this.end = end;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if (progress.isStopped()) {
+                return;
+            }
+            if (end - start <= THRESHOLD) {
+                for (int n = start; n < end; n ++) {
+                    final int i = indices == null ? n : indices[n];
+                    final ErrorAggregator errors = new ErrorAggregator();
+                    facts[i] = validateRecord(v, cache, records.get(i), errors);
+                    progress.validated(errors);
+                    if (!errors.isEmpty()) {
+                        results[i] = errors;
+                    }
+                }
+            } else {
+                final int middle = start + ((end - start) / 2);
+                invokeAll(new ValidateRange(v, cache, records, indices, results, facts, start, middle, progress),
+                        new ValidateRange(v, cache, records, indices, results, facts, middle, end, progress));
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.dplava.validation;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Values from a single record that are needed for checks across records (such as
+ * the uniqueness of identifiers), captured while the record is validated so that
+ * those checks don't need to read the record again.
+ */
+public class RecordFacts {
+
+    public static final String IDENTIFIER = "identifier";
+
+    private static final String DCTERMS = "http://purl.org/dc/terms/";
+
+    /**
+     * The elements whose (first) values are captured, as namespace, local name and key.
+     */
+    private static final String[][] ELEMENTS = new String[][] {
+        { DCTERMS, "identifier", IDENTIFIER },
+    };
+
+    private Map<String, String> values = new HashMap<>();
+
+    /**
+     * @return the record's first dcterms:identifier, or null if it has none
+     */
+    public String getIdentifier() {
+        return values.get(IDENTIFIER);
+    }
+
+    public String get(final String key) {
+        return values.get(key);
+    }
+
+    public Map<String, String> getValues() {
+        return Collections.unmodifiableMap(values);
+    }
+
+    void putIfAbsent(final String key, final String value) {
+        values.putIfAbsent(key, value);
+    }
+
+    private static String getKey(final String namespace, final String localName) {
+        for (String[] element : ELEMENTS) {
+            if (element[0].equals(namespace) && element[1].equals(localName)) {
+                return element[2];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Captures the facts from a parsed record.
+     */
+    static RecordFacts fromDocument(final Document d) {
+        final RecordFacts facts = new RecordFacts();
+        for (String[] element : ELEMENTS) {
+            final Node n = d.getElementsByTagNameNS(element[0], element[1]).item(0);
+            if (n != null) {
+                facts.putIfAbsent(element[2], n.getTextContent());
+            }
+        }
+        return facts;
+    }
+
+    /**
+     * Creates a filter that captures the facts from the parse events that pass through it
+     * on their way to its ContentHandler (if any).
+     */
+    static Collector newCollector() {
+        return new Collector();
+    }
+
+    static class Collector extends XMLFilterImpl {
+
+        private RecordFacts facts = new RecordFacts();
+
+        private String key;
+
+        private int depth;
+
+        private StringBuilder value;
+
+        RecordFacts getFacts() {
+            return facts;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            if (value != null) {
+                depth ++;
+            } else {
+                key = getKey(uri, localName);
+                if (key != null && facts.get(key) == null) {
+                    value = new StringBuilder();
+                    depth = 0;
+                }
+            }
+            super.startElement(uri, localName, qName, atts);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (value != null) {
+                value.append(ch, start, length);
+            }
+            super.characters(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (value != null) {
+                if (depth == 0) {
+                    facts.putIfAbsent(key, value.toString());
+                    value = null;
+                } else {
+                    depth --;
+                }
+            }
+            super.endElement(uri, localName, qName);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.dplava.validation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A record to be validated, wherever it is stored.
+ */
+public interface RecordSource {
+
+    /**
+     * @return the path of the record (relative to the root of its repository, if any)
+     */
+    String getPath();
+
+    /**
+     * @return the name by which the record is identified in validation reports
+     */
+    default String getName() {
+        return getPath().substring(getPath().lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @return the URI against which relative references within the record are resolved,
+     *         or null if there is none
+     */
+    default String getSystemId() {
+        return null;
+    }
+
+    /**
+     * @return an identifier that is the same for any two records with identical content
+     *         (such as a git blob id), or null if there is none
+     */
+    default String getContentId() {
+        return null;
+    }
+
+    /**
+     * Opens the content of the record, which the caller must close.
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Gets a RecordSource for a file on disk.
+     */
+    static RecordSource forFile(final File file) {
+        return new RecordSource() {
+            @Override
+            public String getPath() {
+                return file.getPath();
+            }
+
+            @Override
+            public String getName() {
+                return file.getName();
+            }
+
+            @Override
+            public String getSystemId() {
+                return file.toURI().toString();
+            }
+
+            @Override
+            public InputStream openStream() throws IOException {
+                return new FileInputStream(file);
+            }
+        };
+    }
+}
@@ -0,0 +1,181 @@
+package org.dplava.validation;
+
+import org.w3c.dom.bootstrap.DOMImplementationRegistry;
+import org.w3c.dom.ls.DOMImplementationLS;
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A versioned bundle of validation rules that can be loaded from the classpath or
+ * a local directory, so that validators can be built without any network access.
+ *
+ * A bundle is described by a "ruleset.properties" file at its root, containing:
+ * <ul>
+ *     <li>version: an identifier for this version of the rules (required), which is
+ *         reported with each validation result and must change whenever the rules do</li>
+ *     <li>schema: the path of the XSD (with embedded schematron rules) within the
+ *         bundle (default "dplava.xsd")</li>
+ *     <li>schematron: the path of the schematron stylesheet already generated from
+ *         the XSD (see EmbeddedSchematronValidator.compileSchematron()), if any</li>
+ *     <li>import.N.url and import.N.path: the path within the bundle of a local copy
+ *         of each remote schema, stylesheet or entity that the rules refer to by URL</li>
+ * </ul>
+ * Relative references (such as imports of other XSDs in the bundle) are resolved
+ * against the location of the XSD as usual.
+ *
+ * RuleSets are immutable and thread-safe.
+ */
+public class RuleSet {
+
+    public static final String DESCRIPTOR = "ruleset.properties";
+
+    private static final String CLASSPATH_PREFIX = "classpath:";
+
+    private String location;
+
+    private String version;
+
+    private URL schemaUrl;
+
+    private URL schematronUrl;
+
+    private Map<String, URL> imports;
+
+    private RuleSet(final String location, final URL base) throws IOException {
+        this.location = location;
+        final Properties p = new Properties();
+        try (InputStream in = new URL(base, DESCRIPTOR).openStream()) {
+            p.load(in);
+        }
+        version = p.getProperty("version");
+        if (version == null || version.trim().isEmpty()) {
+            throw new IOException("No version specified in " + DESCRIPTOR + " of rule set " + location + "!");
+        }
+        version = version.trim();
+        schemaUrl = new URL(base, p.getProperty("schema", "dplava.xsd"));
+        schematronUrl = p.getProperty("schematron") == null ? null : new URL(base, p.getProperty("schematron"));
+        imports = new HashMap<>();
+        for (int i = 1; p.getProperty("import." + i + ".url") != null; i ++) {
+            imports.put(p.getProperty("import." + i + ".url"), new URL(base, p.getProperty("import." + i + ".path")));
+        }
+    }
+
+    /**
+     * Loads the rule set at the given location, which is either a directory or
+     * "classpath:" followed by the path of a directory on the classpath.
+     */
+    public static RuleSet load(final String location) throws IOException {
+        if (location.startsWith(CLASSPATH_PREFIX)) {
+            return fromClasspath(location.substring(CLASSPATH_PREFIX.length()));
+        } else {
+            return fromDirectory(new File(location));
+        }
+    }
+
+    public static RuleSet fromDirectory(final File dir) throws IOException {
+        if (!new File(dir, DESCRIPTOR).isFile()) {
+            throw new FileNotFoundException("No " + DESCRIPTOR + " found in " + dir.getAbsolutePath() + "!");
+        }
+        return new RuleSet(dir.getAbsolutePath(), dir.getAbsoluteFile().toURI().toURL());
+    }
+
+    public static RuleSet fromClasspath(final String path) throws IOException {
+        final String dir = path.replaceAll("^/+|/+$", "");
+        final URL descriptor = RuleSet.class.getClassLoader().getResource(dir + "/" + DESCRIPTOR);
+        if (descriptor == null) {
+            throw new FileNotFoundException("No " + DESCRIPTOR + " found in " + dir + " on the classpath!");
+        }
+        return new RuleSet(CLASSPATH_PREFIX + dir, new URL(descriptor, "."));
+    }
+
+    /**
+     * @return where this rule set was loaded from, in the form accepted by load()
+     */
+    public String getLocation() {
+        return location;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public URL getSchemaUrl() {
+        return schemaUrl;
+    }
+
+    /**
+     * @return the URL of the pre-generated schematron stylesheet, or null if it must be
+     *         generated from the XSD
+     */
+    public URL getSchematronUrl() {
+        return schematronUrl;
+    }
+
+    /**
+     * @return the local copy of the resource at the given URL, or null if there is none
+     */
+    public URL resolve(final String url) {
+        return url == null ? null : imports.get(url);
+    }
+
+    /**
+     * Gets an EntityResolver that resolves entities from their local copies in this rule
+     * set, deferring to the given resolver for any others.
+     */
+    public EntityResolver getEntityResolver(final EntityResolver fallback) {
+        return (publicId, systemId) -> {
+            final URL local = resolve(systemId);
+            return local == null ? fallback.resolveEntity(publicId, systemId) : new InputSource(local.toString());
+        };
+    }
+
+    /**
+     * Gets an LSResourceResolver (for a SchemaFactory) that resolves schemas imported by
+     * URL from their local copies in this rule set, leaving any others to be resolved as usual.
+     */
+    public LSResourceResolver getResourceResolver() {
+        return (type, namespaceURI, publicId, systemId, baseURI) -> {
+            URL local = resolve(systemId);
+            if (local == null && systemId != null && baseURI != null) {
+                try {
+                    local = resolve(new URL(new URL(baseURI), systemId).toString());
+                } catch (MalformedURLException e) {
+                    // leave it to be resolved as usual
+                }
+            }
+            if (local == null) {
+                return null;
+            }
+            final LSInput input = newLSInput();
+            input.setPublicId(publicId);
+            input.setSystemId(local.toString());
+            input.setBaseURI(baseURI);
+            return input;
+        };
+    }
+
+    private static LSInput newLSInput() {
+        try {
+            return ((DOMImplementationLS) DOMImplementationRegistry.newInstance().getDOMImplementation("LS")).createLSInput();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return location + " (version " + version + ")";
+    }
+}
@@ -0,0 +1,104 @@
+package org.dplava.validation;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.dplava.util.Digests;
+import org.dplava.util.Environment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Node;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+/**
+ * A directory of schematron validation stylesheets that have already been generated
+ * from an XSD, keyed by a hash of the XSD and of the stylesheets used to generate them.
+ * Because generating the stylesheet takes far longer than compiling it, this allows
+ * new EmbeddedSchematronValidator instances (particularly after a restart) to skip
+ * the generation step whenever neither the schema nor this application has changed.
+ *
+ * This class is thread-safe, and entries are written atomically so that multiple
+ * processes may share a directory.
+ */
+public class SchematronCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SchematronCache.class);
+
+    private File directory;
+
+    public SchematronCache(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Gets the cache in the directory named by the SCHEMATRON_CACHE_DIR environment variable,
+     * or in a subdirectory of the system temporary directory if unset.
+     */
+    public static SchematronCache getDefault() {
+        return new SchematronCache(new File(Environment.getString("SCHEMATRON_CACHE_DIR", new File(System.getProperty("java.io.tmpdir"), "dplava-schematron-cache").getPath())));
+    }
+
+    /**
+     * Computes the key for the stylesheet generated from the given XSD content with the given
+     * classpath stylesheets.
+     */
+    public static String computeKey(final byte[] xsd, final String ... stylesheets) throws IOException {
+        final MessageDigest digest = Digests.newSha256();
+        digest.update(xsd);
+        for (String stylesheet : stylesheets) {
+            try (InputStream in = SchematronCache.class.getClassLoader().getResourceAsStream(stylesheet)) {
+                if (in == null) {
+                    throw new IOException("Unable to find " + stylesheet + " on the classpath!");
+                }
+                digest.update(IOUtils.toByteArray(in));
+            }
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+
+    /**
+     * @return the cached stylesheet for the given key, or null if none has been stored.
+     */
+    public File get(final String key) {
+        final File f = getFile(key);
+        return f.isFile() ? f : null;
+    }
+
+    /**
+     * Stores the given stylesheet under the given key.  Failures are logged rather than
+     * thrown, as the cache is only an optimization.
+     */
+    public void put(final String key, final Node stylesheet) {
+        try {
+            directory.mkdirs();
+            final File tmp = File.createTempFile(key, ".tmp", directory);
+            try {
+                Transformer t = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null).newTransformer();
+                t.transform(new DOMSource(stylesheet), new StreamResult(tmp));
+                Files.move(tmp.toPath(), getFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException | TransformerException e) {
+            LOGGER.warn("Unable to cache schematron stylesheet in " + directory.getAbsolutePath() + ".", e);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private File getFile(final String key) {
+        return new File(directory, key + ".xsl");
+    }
+}
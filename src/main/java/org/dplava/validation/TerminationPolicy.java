@@ -0,0 +1,115 @@
+package org.dplava.validation;
+
+import org.dplava.util.Environment;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Decides when the validation of a large set of records may stop early, so that a
+ * systematically broken submission doesn't occupy the validation pool to produce a
+ * report no one will read in full.  Two policies are supported, each disabled when
+ * its limit is 0:
+ * <ul>
+ *     <li>fail fast: validation stops once maxErrors errors have been found</li>
+ *     <li>sampling: when there are at least sampleMinRecords records, a random sample
+ *         of sampleSize of them is validated first, and validation stops if at least
+ *         maxSampleFailurePercent of the sample is invalid</li>
+ * </ul>
+ * See ParallelFileValidator.validateRecords() for how these are applied.
+ *
+ * TerminationPolicies are immutable and thread-safe.
+ */
+public class TerminationPolicy {
+
+    /**
+     * A policy under which every record is validated.
+     */
+    public static final TerminationPolicy NONE = new TerminationPolicy(0, 0, 0, 0);
+
+    /**
+     * The number of invalid sampled records whose errors are reported as examples when
+     * validation stops after sampling.
+     */
+    static final int EXAMPLE_RECORDS = 10;
+
+    private int maxErrors;
+
+    private int sampleMinRecords;
+
+    private int sampleSize;
+
+    private int maxSampleFailurePercent;
+
+    public TerminationPolicy(final int maxErrors, final int sampleMinRecords, final int sampleSize, final int maxSampleFailurePercent) {
+        this.maxErrors = maxErrors;
+        this.sampleMinRecords = sampleMinRecords;
+        this.sampleSize = sampleSize;
+        this.maxSampleFailurePercent = maxSampleFailurePercent;
+    }
+
+    /**
+     * Gets the policy configured by the FAIL_FAST_MAX_ERRORS (default 0), SAMPLE_MIN_FILES
+     * (default 5000), SAMPLE_SIZE (default 500) and SAMPLE_MAX_FAILURE_PERCENT (default 0)
+     * environment variables.  By default every record is validated.
+     */
+    public static TerminationPolicy fromEnvironment() {
+        return new TerminationPolicy(Environment.getInt("FAIL_FAST_MAX_ERRORS", 0), Environment.getInt("SAMPLE_MIN_FILES", 5000),
+                Environment.getInt("SAMPLE_SIZE", 500), Environment.getInt("SAMPLE_MAX_FAILURE_PERCENT", 0));
+    }
+
+    /**
+     * @return the number of errors after which validation stops, or 0 if it never does
+     */
+    public int getMaxErrors() {
+        return maxErrors;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @return true if a sample of the given number of records should be validated first
+     */
+    public boolean shouldSample(final int recordCount) {
+        return maxSampleFailurePercent > 0 && sampleSize > 0 && recordCount >= sampleMinRecords && recordCount > sampleSize;
+    }
+
+    /**
+     * @return true if validation should stop because too many of the sampled records
+     *         were invalid
+     */
+    public boolean isSampleFailureRateExceeded(final int invalidCount, final int sampledCount) {
+        return maxSampleFailurePercent > 0 && sampledCount > 0 && invalidCount * 100L >= maxSampleFailurePercent * (long) sampledCount;
+    }
+
+    /**
+     * Chooses the records to sample from the given number of records.  The choice is
+     * random, so that a sample isn't skewed by the order of the records, but repeatable,
+     * so that validating the same records twice gives the same result.
+     * @return the (ascending) indices of the sampled records
+     */
+    int[] sample(final int recordCount) {
+        final int[] indices = new int[recordCount];
+        for (int i = 0; i < recordCount; i ++) {
+            indices[i] = i;
+        }
+        final Random random = new Random(recordCount);
+        final int size = Math.min(sampleSize, recordCount);
+        for (int i = 0; i < size; i ++) {
+            final int j = i + random.nextInt(recordCount - i);
+            final int swap = indices[i];
+            indices[i] = indices[j];
+            indices[j] = swap;
+        }
+        final int[] sample = Arrays.copyOf(indices, size);
+        Arrays.sort(sample);
+        return sample;
+    }
+
+    @Override
+    public String toString() {
+        return "maxErrors=" + maxErrors + ", sampleMinRecords=" + sampleMinRecords + ", sampleSize=" + sampleSize + ", maxSampleFailurePercent=" + maxSampleFailurePercent;
+    }
+}
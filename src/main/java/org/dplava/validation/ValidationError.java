@@ -0,0 +1,93 @@
+package org.dplava.validation;
+
+/**
+ * A single problem found while validating records.
+ *
+ * This class is immutable.
+ */
+public class ValidationError {
+
+    public enum Severity {
+        WARNING("Warning"), ERROR("Error"), FATAL("Fatal");
+
+        private String label;
+
+        Severity(final String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return the label with which errors of this severity are prefixed in text reports
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private Severity severity;
+
+    private String file;
+
+    private int line;
+
+    private int column;
+
+    private String rule;
+
+    private String message;
+
+    /**
+     * @param file the name of the file in which the error was found, or null if it
+     *             doesn't concern a single file
+     * @param line the line at which the error was found, or -1 if unknown
+     * @param column the column at which the error was found, or -1 if unknown
+     * @param rule an identifier for the rule that was broken, or null if unknown
+     */
+    public ValidationError(final Severity severity, final String file, final int line, final int column, final String rule, final String message) {
+        this.severity = severity;
+        this.file = file;
+        this.line = line;
+        this.column = column;
+        this.rule = rule;
+        this.message = message;
+    }
+
+    public Severity getSeverity() {
+        return severity;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    public String getRule() {
+        return rule;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return a copy of this error attributed to the given file
+     */
+    public ValidationError withFile(final String file) {
+        return new ValidationError(severity, file, line, column, rule, message);
+    }
+
+    /**
+     * @return the error as it appears in text reports, such as "Error: a.xml - message"
+     */
+    @Override
+    public String toString() {
+        return severity.getLabel() + ": " + (file == null ? "" : file + " - ") + message;
+    }
+}
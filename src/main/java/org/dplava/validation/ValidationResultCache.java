@@ -0,0 +1,261 @@
+package org.dplava.validation;
+
+import org.dplava.util.Digests;
+import org.dplava.util.Environment;
+import org.dplava.validation.ValidationError.Severity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local, content-addressed store of the results of validating individual records.
+ * Results are keyed by the id of the record's content (such as a git blob id), the
+ * version of the rules it was validated against and the build of this application
+ * (so that results are never replayed by a different build, even one with the same
+ * version number), so a record whose content has been validated before under the
+ * current rules doesn't need to be validated again, whatever its path or repository.
+ *
+ * Because errors name the record, names are removed from errors when stored and the
+ * current name is added back when results are replayed.
+ *
+ * Results are stored one per file, and once the number of entries exceeds the maximum
+ * the least recently used ones are removed.  This class is thread-safe.
+ */
+public class ValidationResultCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValidationResultCache.class);
+
+    /**
+     * The number of results stored between checks of the size of the cache.
+     */
+    private static final int SWEEP_INTERVAL = 1000;
+
+    /**
+     * The build of this application, which is part of every key.
+     */
+    private static final String APPLICATION_BUILD = getApplicationBuild();
+
+    private static ValidationResultCache DEFAULT;
+
+    private File directory;
+
+    private long maxEntries;
+
+    private AtomicLong stores = new AtomicLong();
+
+    public ValidationResultCache(final File directory, final long maxEntries) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the shared cache, configured by the RESULT_CACHE_DIR and RESULT_CACHE_MAX_ENTRIES
+     * environment variables.
+     */
+    public static synchronized ValidationResultCache getDefault() {
+        if (DEFAULT == null) {
+            DEFAULT = new ValidationResultCache(new File(Environment.getString("RESULT_CACHE_DIR", new File(System.getProperty("java.io.tmpdir"), "dplava-result-cache").getPath())),
+                    Environment.getLong("RESULT_CACHE_MAX_ENTRIES", 500000));
+        }
+        return DEFAULT;
+    }
+
+    /**
+     * Replays the stored result of validating the given content, if any, into the given
+     * ErrorAggregator.
+     * @return the facts captured from the record, or null if no result is stored (in
+     *         which case nothing is added to the ErrorAggregator)
+     */
+    public RecordFacts replay(final String contentId, final String rulesVersion, final String name, final ErrorAggregator errors) {
+        final File f = getFile(contentId, rulesVersion);
+        if (!f.isFile()) {
+            return null;
+        }
+        final Properties p = new Properties();
+        try (InputStream in = new FileInputStream(f)) {
+            p.load(in);
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read cached validation result " + f.getAbsolutePath() + ".", e);
+            return null;
+        }
+        f.setLastModified(System.currentTimeMillis());
+
+        final ErrorAggregator cached = new ErrorAggregator();
+        for (Severity severity : Severity.values()) {
+            readErrors(p, severity, name, cached);
+        }
+        errors.addAll(cached);
+        final RecordFacts facts = new RecordFacts();
+        for (String key : p.stringPropertyNames()) {
+            if (key.startsWith("fact.")) {
+                facts.putIfAbsent(key.substring("fact.".length()), p.getProperty(key));
+            }
+        }
+        return facts;
+    }
+
+    /**
+     * Stores the result of validating the given content.  Failures are logged rather than
+     * thrown, as the cache is only an optimization.
+     * @param errors an ErrorAggregator holding only the errors for this record
+     * @param facts the facts captured from the record
+     */
+    public void store(final String contentId, final String rulesVersion, final String name, final ErrorAggregator errors, final RecordFacts facts) {
+        if (errors.getSuppressedCount() > 0) {
+            // too broken to be worth caching, as only the recorded errors could be replayed
+            return;
+        }
+        final Properties p = new Properties();
+        final int[] counts = new int[Severity.values().length];
+        try {
+            errors.forEach(e -> writeError(p, counts[e.getSeverity().ordinal()] ++, name, e));
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read validation result for " + name + ".", e);
+            return;
+        }
+        for (Map.Entry<String, String> fact : facts.getValues().entrySet()) {
+            p.setProperty("fact." + fact.getKey(), fact.getValue());
+        }
+        final File f = getFile(contentId, rulesVersion);
+        try {
+            f.getParentFile().mkdirs();
+            final File tmp = File.createTempFile(f.getName(), ".tmp", f.getParentFile());
+            try {
+                try (OutputStream out = new FileOutputStream(tmp)) {
+                    p.store(out, null);
+                }
+                Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to cache validation result " + f.getAbsolutePath() + ".", e);
+        }
+        if (stores.incrementAndGet() % SWEEP_INTERVAL == 0) {
+            evict();
+        }
+    }
+
+    /**
+     * Removes the least recently used results if there are more than the maximum.
+     */
+    synchronized void evict() {
+        final List<File> entries = new ArrayList<>();
+        final File[] shards = directory.listFiles(File::isDirectory);
+        if (shards == null) {
+            return;
+        }
+        for (File shard : shards) {
+            final File[] files = shard.listFiles((d, name) -> name.endsWith(".properties"));
+            if (files != null) {
+                for (File f : files) {
+                    entries.add(f);
+                }
+            }
+        }
+        if (entries.size() > maxEntries) {
+            entries.sort(Comparator.comparingLong(File::lastModified));
+            final long toRemove = entries.size() - maxEntries;
+            for (int i = 0; i < toRemove; i ++) {
+                entries.get(i).delete();
+            }
+            LOGGER.debug("Evicted " + toRemove + " validation results from the cache.");
+        }
+    }
+
+    private File getFile(final String contentId, final String rulesVersion) {
+        final String key = Digests.sha256Hex(contentId + "\n" + rulesVersion + "\n" + APPLICATION_BUILD);
+        return new File(new File(directory, key.substring(0, 2)), key + ".properties");
+    }
+
+    /**
+     * Stores an error as "warning.N", "error.N" or "fatal.N", prefixed with "+" if it
+     * concerns the record itself, "-" if the name of the record starts its (file-less)
+     * message or "=" otherwise, along with its location and rule if known.
+     */
+    private static void writeError(final Properties p, final int index, final String name, final ValidationError e) {
+        final String key = getPrefix(e.getSeverity()) + index;
+        final String namePrefix = name + " - ";
+        if (name.equals(e.getFile())) {
+            p.setProperty(key, "+" + e.getMessage());
+        } else if (e.getFile() == null && e.getMessage().startsWith(namePrefix)) {
+            p.setProperty(key, "-" + e.getMessage().substring(namePrefix.length()));
+        } else {
+            p.setProperty(key, "=" + e.getMessage());
+            if (e.getFile() != null) {
+                p.setProperty(key + ".file", e.getFile());
+            }
+        }
+        if (e.getLine() >= 0) {
+            p.setProperty(key + ".line", String.valueOf(e.getLine()));
+        }
+        if (e.getColumn() >= 0) {
+            p.setProperty(key + ".column", String.valueOf(e.getColumn()));
+        }
+        if (e.getRule() != null) {
+            p.setProperty(key + ".rule", e.getRule());
+        }
+    }
+
+    private static void readErrors(final Properties p, final Severity severity, final String name, final ErrorAggregator errors) {
+        final String prefix = getPrefix(severity);
+        for (int i = 0; p.getProperty(prefix + i) != null; i ++) {
+            final String key = prefix + i;
+            final String value = p.getProperty(key);
+            final String file;
+            final String message;
+            if (value.startsWith("+")) {
+                file = name;
+                message = value.substring(1);
+            } else if (value.startsWith("-")) {
+                file = null;
+                message = name + " - " + value.substring(1);
+            } else {
+                file = p.getProperty(key + ".file");
+                message = value.substring(1);
+            }
+            errors.add(new ValidationError(severity, file, Integer.parseInt(p.getProperty(key + ".line", "-1")),
+                    Integer.parseInt(p.getProperty(key + ".column", "-1")), p.getProperty(key + ".rule"), message));
+        }
+    }
+
+    private static String getPrefix(final Severity severity) {
+        return severity == Severity.FATAL ? "fatal." : severity.name().toLowerCase() + ".";
+    }
+
+    /**
+     * Gets the version and build timestamp of this application, or if the build isn't
+     * known (as when running classes that weren't built by maven), an id unique to this
+     * process, so that results are only replayed by the process that stored them.
+     */
+    private static String getApplicationBuild() {
+        final Properties p = new Properties();
+        try (InputStream in = ValidationResultCache.class.getClassLoader().getResourceAsStream("version.properties")) {
+            if (in != null) {
+                p.load(in);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Unable to read version.properties.", e);
+        }
+        final String build = p.getProperty("build", "");
+        if (build.isEmpty() || build.startsWith("${")) {
+            return "unknown build " + UUID.randomUUID();
+        }
+        return p.getProperty("version", "unknown") + " " + build;
+    }
+}
@@ -0,0 +1,201 @@
+package org.dplava.validation;
+
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.dplava.util.Environment;
+import org.dplava.util.SharedHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains a single long-lived DPLAVAMetadataValidator so that the expensive work
+ * of fetching and compiling the schema and schematron is done once rather than for
+ * every commit.
+ *
+ * When started, the service periodically checks the published schema for changes
+ * (using its ETag or Last-Modified header) and builds a replacement validator in the
+ * background when it has changed, or when the validator is older than the maximum
+ * age and the server doesn't report either header.  A validator that couldn't load
+ * all of its rules is replaced at the next check.  Callers continue to use the
+ * previous validator until the replacement is ready, and keep it if the rebuild
+ * fails.
+ *
+ * Alternatively, the validator may be built from a local RuleSet (named by the
+ * RULE_SET environment variable), in which case nothing is fetched from the network,
+ * and the rule set is reloaded (replacing the validator) whenever its declared
+ * version changes.
+ *
+ * This class is thread-safe.
+ */
+public class ValidatorService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ValidatorService.class);
+
+    private long checkInterval;
+
+    private long maxAge;
+
+    private volatile DPLAVAMetadataValidator validator;
+
+    private volatile String schemaVersion;
+
+    private volatile long created;
+
+    private ScheduledExecutorService refresher;
+
+    /**
+     * The location of the rule set to enforce (see RuleSet.load()), or null to enforce
+     * the published schema.
+     */
+    private String ruleSetLocation;
+
+    /**
+     * @param checkIntervalMinutes how often to check the published schema for changes
+     * @param maxAgeMinutes the age at which a validator is replaced regardless, when changes
+     *                      to the schema can't otherwise be detected
+     */
+    public ValidatorService(final long checkIntervalMinutes, final long maxAgeMinutes) {
+        this(checkIntervalMinutes, maxAgeMinutes, null);
+    }
+
+    /**
+     * @param checkIntervalMinutes how often to check the published schema or the rule set
+     *                             for changes
+     * @param maxAgeMinutes the age at which a validator is replaced regardless, when changes
+     *                      to the schema can't otherwise be detected
+     * @param ruleSetLocation the location of the rule set to enforce (see RuleSet.load()), or
+     *                        null to enforce the published schema
+     */
+    public ValidatorService(final long checkIntervalMinutes, final long maxAgeMinutes, final String ruleSetLocation) {
+        this.checkInterval = checkIntervalMinutes;
+        this.maxAge = TimeUnit.MINUTES.toMillis(maxAgeMinutes);
+        this.ruleSetLocation = ruleSetLocation;
+    }
+
+    /**
+     * Creates a ValidatorService configured from the SCHEMA_CHECK_MINUTES,
+     * SCHEMA_MAX_AGE_MINUTES and RULE_SET environment variables.
+     */
+    public ValidatorService() {
+        this(Environment.getLong("SCHEMA_CHECK_MINUTES", 10), Environment.getLong("SCHEMA_MAX_AGE_MINUTES", 24 * 60), Environment.getString("RULE_SET", null));
+    }
+
+    /**
+     * Gets the current validator, building it if this is the first request.
+     */
+    public DPLAVAMetadataValidator getValidator() throws ParserConfigurationException, TransformerException, IOException, SAXException {
+        DPLAVAMetadataValidator v = validator;
+        if (v == null) {
+            synchronized (this) {
+                if (validator == null) {
+                    rebuild(fetchSchemaVersion());
+                }
+                v = validator;
+            }
+        }
+        return v;
+    }
+
+    /**
+     * Gets an identifier for the version of the schema (or the rule set) from which the
+     * current validator was built, or null if the server doesn't provide one.
+     */
+    public String getSchemaVersion() {
+        return schemaVersion;
+    }
+
+    /**
+     * Starts periodically checking the schema for changes in a background thread.
+     */
+    public synchronized void start() {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "validator-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+            refresher.scheduleWithFixedDelay(this::refresh, checkInterval, checkInterval, TimeUnit.MINUTES);
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Replaces the current validator if the published schema (or the rule set) has changed
+     * or the validator has exceeded its maximum age.  This is called periodically once the
+     * service is started, but may be called at any time to pick up a new rule set at once.
+     */
+    public void refresh() {
+        try {
+            final String version = fetchSchemaVersion();
+            final boolean changed = version != null && !version.equals(schemaVersion);
+            final boolean expired = version == null && System.currentTimeMillis() - created > maxAge;
+            final boolean incomplete = validator == null || !validator.isComplete();
+            if (incomplete || changed || expired) {
+                LOGGER.info("Rebuilding validator for " + getSource() + " (" + (incomplete ? "incomplete" : changed ? "schema changed" : "expired") + ").");
+                synchronized (this) {
+                    rebuild(version);
+                }
+            }
+        } catch (Throwable t) {
+            LOGGER.warn("Unable to refresh validator, continuing to use the existing one.", t);
+        }
+    }
+
+    private void rebuild(final String version) throws ParserConfigurationException, TransformerException, IOException, SAXException {
+        final long start = System.currentTimeMillis();
+        final DPLAVAMetadataValidator v = ruleSetLocation == null ? new DPLAVAMetadataValidator()
+                : new DPLAVAMetadataValidator(RuleSet.load(ruleSetLocation), Environment.getBoolean("STREAMING_VALIDATION", true));
+        validator = v;
+        // the rule set may have changed again since its version was checked
+        schemaVersion = v.getRuleSetVersion() == null ? version : v.getRuleSetVersion();
+        created = System.currentTimeMillis();
+        LOGGER.debug("Built validator in " + (created - start) + " ms.");
+    }
+
+    private String getSource() {
+        return ruleSetLocation == null ? DPLAVAMetadataValidator.SCHEMA_URL : ruleSetLocation;
+    }
+
+    /**
+     * Gets the ETag (or failing that, the Last-Modified date) of the published schema, or
+     * the declared version of the rule set.
+     */
+    private String fetchSchemaVersion() {
+        if (ruleSetLocation != null) {
+            try {
+                return RuleSet.load(ruleSetLocation).getVersion();
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Unable to load rule set " + ruleSetLocation + ".", e);
+                return null;
+            }
+        }
+        final CloseableHttpClient client = SharedHttpClient.get();
+        HttpHead head = new HttpHead(DPLAVAMetadataValidator.SCHEMA_URL);
+        try (CloseableHttpResponse response = client.execute(head)) {
+            Header h = response.getFirstHeader("ETag");
+            if (h == null) {
+                h = response.getFirstHeader("Last-Modified");
+            }
+            return h == null ? null : h.getValue();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to check version of " + DPLAVAMetadataValidator.SCHEMA_URL + ".", e);
+            return null;
+        }
+    }
+}
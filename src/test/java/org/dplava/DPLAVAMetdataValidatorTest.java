@@ -11,6 +11,8 @@ import java.io.File;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class DPLAVAMetdataValidatorTest {
 
@@ -87,6 +89,43 @@ public class DPLAVAMetdataValidatorTest {
                 + "Error: sample-invalid-dateset.xml - Warning: Suspect value.", e.getErrors());
     }
     
+    @Test
+    public void testStreamingMatchesDocumentValidation() throws IOException, SAXException, ParserConfigurationException, TransformerException {
+        final String localSchema = new File("src/test/resources/sample-schematron.xsd").toURI().toString();
+        final DPLAVAMetadataValidator streaming = new DPLAVAMetadataValidator(localSchema, true);
+        final DPLAVAMetadataValidator dom = new DPLAVAMetadataValidator(localSchema, false);
+        for (String name : new String[] { "sample-valid.xml", "sample-missing-title.xml", "sample-not-well-formed.xml" }) {
+            ErrorAggregator e1 = new ErrorAggregator();
+            streaming.validateFile(new File("src/test/resources/" + name), e1);
+            ErrorAggregator e2 = new ErrorAggregator();
+            dom.validateFile(new File("src/test/resources/" + name), e2);
+            assertEquals(name, e2.getErrors(), e1.getErrors());
+        }
+        ErrorAggregator e = new ErrorAggregator();
+        streaming.validateFile(new File("src/test/resources/sample-missing-title.xml"), e);
+        assertEquals("Error: sample-missing-title.xml - At least one title element is required.", e.getErrors());
+    }
+
+    @Test
+    public void testStreamingMatchesDocumentValidationWithoutSchematron() throws IOException, SAXException, ParserConfigurationException, TransformerException {
+        final String localSchema = new File("src/test/resources/sample-broken-schematron.xsd").toURI().toString();
+        final DPLAVAMetadataValidator streaming = new DPLAVAMetadataValidator(localSchema, true);
+        final DPLAVAMetadataValidator dom = new DPLAVAMetadataValidator(localSchema, false);
+        for (String name : new String[] { "sample-valid.xml", "sample-no-schema.xml", "sample-not-well-formed.xml" }) {
+            ErrorAggregator e1 = new ErrorAggregator();
+            streaming.validateFile(new File("src/test/resources/" + name), e1);
+            ErrorAggregator e2 = new ErrorAggregator();
+            dom.validateFile(new File("src/test/resources/" + name), e2);
+            assertEquals(name, e2.getErrors(), e1.getErrors());
+        }
+        ErrorAggregator e = new ErrorAggregator();
+        streaming.validateFile(new File("src/test/resources/sample-not-well-formed.xml"), e);
+        assertFalse(e.getErrors(), e.getErrors().contains("Schematron validation not performed!"));
+        e = new ErrorAggregator();
+        streaming.validateFile(new File("src/test/resources/sample-valid.xml"), e);
+        assertTrue(e.getErrors(), e.getErrors().endsWith("Error: Schematron validation not performed!"));
+    }
+
     @Test
     public void testValidatorAgainstValidCNERS() throws IOException, SAXException, ParserConfigurationException, TransformerException {
         ErrorAggregator e = new ErrorAggregator();
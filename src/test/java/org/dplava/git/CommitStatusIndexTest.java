@@ -0,0 +1,94 @@
+package org.dplava.git;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CommitStatusIndexTest {
+
+    private static final URI REPO = URI.create("https://github.com/dplava/test");
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File("target/" + UUID.randomUUID().toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testStatusesArePersisted() {
+        final CommitStatusIndex index = new CommitStatusIndex(dir);
+        index.put(REPO, "a", ValidityRegistry.PENDING);
+        index.put(REPO, "a", ValidityRegistry.SUCCESS);
+        index.put(REPO, "b", ValidityRegistry.FAILURE);
+
+        final CommitStatusIndex reloaded = new CommitStatusIndex(dir);
+        assertEquals(ValidityRegistry.SUCCESS, reloaded.get(REPO, "a"));
+        assertEquals(ValidityRegistry.FAILURE, reloaded.get(REPO, "b"));
+        assertNull(reloaded.get(REPO, "c"));
+        assertNull(reloaded.get(URI.create("https://github.com/dplava/other"), "a"));
+    }
+
+    @Test
+    public void testStatusesFromRegistryAreRecorded() throws Exception {
+        final List<String> requests = new ArrayList<>();
+        final ValidityRegistry registry = new CommitStatusIndex(dir).wrap(new ValidityRegistry() {
+            @Override
+            public String getCommitStatus(URI repo, String commitHash) {
+                requests.add(commitHash);
+                return commitHash.equals("a") ? SUCCESS : PENDING;
+            }
+
+            @Override
+            public void reportCommitInvalid(GithubPayload payload, String url) {
+            }
+
+            @Override
+            public void reportCommitValid(GithubPayload payload) {
+            }
+
+            @Override
+            public void reportCommitPending(GithubPayload payload) {
+            }
+
+            @Override
+            public void reportSystemError(GithubPayload payload) {
+            }
+        });
+        for (int i = 0; i < 2; i ++) {
+            assertEquals(ValidityRegistry.SUCCESS, registry.getCommitStatus(REPO, "a"));
+            assertEquals(ValidityRegistry.PENDING, registry.getCommitStatus(REPO, "b"));
+        }
+        assertEquals(3, requests.size());
+        assertEquals(ValidityRegistry.SUCCESS, new CommitStatusIndex(dir).get(REPO, "a"));
+        assertNull(new CommitStatusIndex(dir).get(REPO, "b"));
+    }
+
+    @Test
+    public void testSupersededStatusesAreCompacted() throws Exception {
+        final CommitStatusIndex index = new CommitStatusIndex(dir);
+        for (int i = 0; i < 10; i ++) {
+            index.put(REPO, "a", ValidityRegistry.PENDING);
+            index.put(REPO, "a", ValidityRegistry.SUCCESS);
+        }
+        assertEquals(ValidityRegistry.SUCCESS, new CommitStatusIndex(dir).get(REPO, "a"));
+        final File[] logs = dir.listFiles();
+        assertEquals(1, logs.length);
+        assertEquals(1, FileUtils.readLines(logs[0], "UTF-8").size());
+    }
+}
@@ -0,0 +1,151 @@
+package org.dplava.git;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GithubApiDispatcherTest {
+
+    private HttpServer server;
+
+    private CloseableHttpClient client;
+
+    private AtomicInteger requests = new AtomicInteger();
+
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/flaky", exchange -> {
+            // so that the client doesn't reuse connections, as it won't silently resend a POST on a stale one
+            exchange.getResponseHeaders().add("Connection", "close");
+            if (requests.incrementAndGet() < 3) {
+                exchange.getResponseHeaders().add("Retry-After", "0");
+                exchange.sendResponseHeaders(429, -1);
+            } else {
+                exchange.getResponseHeaders().add("X-RateLimit-Remaining", "4000");
+                exchange.getResponseHeaders().add("X-RateLimit-Reset", String.valueOf(System.currentTimeMillis() / 1000 + 3600));
+                exchange.sendResponseHeaders(200, -1);
+            }
+            exchange.close();
+        });
+        server.createContext("/gateway", exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(502, -1);
+            exchange.close();
+        });
+        server.createContext("/missing", exchange -> {
+            requests.incrementAndGet();
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.start();
+        baseUrl = "http://localhost:" + server.getAddress().getPort();
+        client = HttpClients.createDefault();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testRetriesRateLimitedRequests() throws Exception {
+        final GithubApiDispatcher dispatcher = new GithubApiDispatcher(client, 2, 5, 1, 1000, 100);
+        final int status = dispatcher.execute(new HttpGet(baseUrl + "/flaky"), HttpClientContext.create(), response -> response.getStatusLine().getStatusCode());
+        assertEquals(200, status);
+        assertEquals(3, requests.get());
+        assertEquals(4000, dispatcher.getRemaining());
+    }
+
+    @Test
+    public void testDoesNotRetryClientErrors() throws Exception {
+        final GithubApiDispatcher dispatcher = new GithubApiDispatcher(client, 2, 5, 1, 1000, 100);
+        final int status = dispatcher.execute(new HttpGet(baseUrl + "/missing"), HttpClientContext.create(), response -> response.getStatusLine().getStatusCode());
+        assertEquals(404, status);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testDoesNotRetryServerErrorsForPosts() throws Exception {
+        final GithubApiDispatcher dispatcher = new GithubApiDispatcher(client, 2, 5, 1, 1000, 100);
+        final int status = dispatcher.execute(new HttpPost(baseUrl + "/gateway"), HttpClientContext.create(), response -> response.getStatusLine().getStatusCode());
+        assertEquals(502, status);
+        assertEquals(1, requests.get());
+
+        requests.set(0);
+        assertEquals(502, (int) dispatcher.execute(new HttpGet(baseUrl + "/gateway"), HttpClientContext.create(), response -> response.getStatusLine().getStatusCode()));
+        assertEquals(6, requests.get());
+    }
+
+    @Test
+    public void testRetriesRateLimitedPosts() throws Exception {
+        final GithubApiDispatcher dispatcher = new GithubApiDispatcher(client, 2, 5, 1, 1000, 100);
+        final int status = dispatcher.execute(new HttpPost(baseUrl + "/flaky"), HttpClientContext.create(), response -> response.getStatusLine().getStatusCode());
+        assertEquals(200, status);
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testPacedRequestsShareOneSchedule() throws Exception {
+        final GithubApiDispatcher dispatcher = new GithubApiDispatcher(client, 2, 1, 50, 60000, 100);
+        dispatcher.updateRateLimit(rateLimitResponse(10, 11));
+        // each caller is given its own slot, about a tenth of the window after the last
+        long previous = dispatcher.getPacingDelay();
+        assertTrue(String.valueOf(previous), previous < 50);
+        for (int i = 0; i < 4; i ++) {
+            final long delay = dispatcher.getPacingDelay();
+            assertTrue(previous + " then " + delay, delay - previous >= 900 && delay - previous <= 1200);
+            previous = delay;
+        }
+        assertEquals(5, dispatcher.getRemaining());
+    }
+
+    @Test
+    public void testRequestsHeldForResetAreSpacedOut() throws Exception {
+        final GithubApiDispatcher dispatcher = new GithubApiDispatcher(client, 2, 1, 50, 60000, 100);
+        dispatcher.updateRateLimit(rateLimitResponse(0, 5));
+        long previous = dispatcher.getPacingDelay();
+        assertTrue(String.valueOf(previous), previous >= 3900);
+        for (int i = 0; i < 4; i ++) {
+            final long delay = dispatcher.getPacingDelay();
+            assertTrue(previous + " then " + delay, delay - previous >= 40 && delay - previous <= 50);
+            previous = delay;
+        }
+
+        // until a response reports a healthy quota
+        dispatcher.updateRateLimit(rateLimitResponse(4000, 3600));
+        assertEquals(0, dispatcher.getPacingDelay());
+    }
+
+    private static BasicHttpResponse rateLimitResponse(final int remaining, final long resetSeconds) {
+        final BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        response.addHeader("X-RateLimit-Remaining", String.valueOf(remaining));
+        response.addHeader("X-RateLimit-Reset", String.valueOf(System.currentTimeMillis() / 1000 + resetSeconds));
+        return response;
+    }
+
+    @Test
+    public void testGivesUpAfterMaxRetries() throws Exception {
+        final GithubApiDispatcher dispatcher = new GithubApiDispatcher(client, 2, 1, 1, 1000, 100);
+        final int status = dispatcher.execute(new HttpGet(baseUrl + "/flaky"), HttpClientContext.create(), response -> response.getStatusLine().getStatusCode());
+        assertEquals(429, status);
+        assertEquals(2, requests.get());
+    }
+}
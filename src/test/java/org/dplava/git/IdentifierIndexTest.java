@@ -0,0 +1,62 @@
+package org.dplava.git;
+
+import org.apache.commons.io.FileUtils;
+import org.dplava.validation.ErrorAggregator;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class IdentifierIndexTest {
+
+    @Test
+    public void testReadIdentifier() throws Exception {
+        assertEquals("Y09633C", IdentifierIndex.readIdentifier(new InputSource(new File("src/test/resources/sample-missing-title.xml").toURI().toString())));
+    }
+
+    @Test
+    public void testDuplicatesInChangedFiles() {
+        IdentifierIndex index = new IdentifierIndex();
+        index.put("a.xml", "1");
+        index.put("dir/b.xml", "2");
+        index.put("c.xml", "3");
+
+        ErrorAggregator errors = new ErrorAggregator();
+        index.checkForDuplicates(errors);
+        assertTrue(errors.isValid());
+
+        index.put("c.xml", "2");
+        index.checkForDuplicates(Arrays.asList("a.xml"), errors);
+        assertTrue(errors.isValid());
+        index.checkForDuplicates(Arrays.asList("c.xml"), errors);
+        assertEquals("Error: Files \"c.xml\" and \"b.xml\" have the same id.", errors.getErrors());
+
+        index.remove("dir/b.xml");
+        errors = new ErrorAggregator();
+        index.checkForDuplicates(errors);
+        assertTrue(errors.isValid());
+    }
+
+    @Test
+    public void testStore() throws Exception {
+        final File dir = new File("target/" + UUID.randomUUID().toString());
+        try {
+            IdentifierIndexStore store = new IdentifierIndexStore(dir);
+            URI repo = new URI("https://github.com/dplava/test");
+            IdentifierIndex index = new IdentifierIndex();
+            index.put("a b=c.xml", "id:1");
+            store.save(repo, "abc123", index);
+            assertNull(store.load(repo, "def456"));
+            assertEquals("id:1", store.load(repo, "abc123").getId("a b=c.xml"));
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
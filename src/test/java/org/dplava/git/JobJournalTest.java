@@ -0,0 +1,54 @@
+package org.dplava.git;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JobJournalTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File("target/" + UUID.randomUUID().toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testOutstandingJobsAreRecovered() throws Exception {
+        final JobJournal journal = new JobJournal(new File(dir, "jobs.log"));
+        final String first = journal.append("{\"after\":\"a\"}".getBytes("UTF-8"), "sig-a");
+        journal.append("{\"after\":\"b\"}".getBytes("UTF-8"), "sig-b");
+        journal.complete(first);
+
+        final List<JobJournal.Job> jobs = new JobJournal(new File(dir, "jobs.log")).getOutstandingJobs();
+        assertEquals(1, jobs.size());
+        assertArrayEquals("{\"after\":\"b\"}".getBytes("UTF-8"), jobs.get(0).getPayloadBytes());
+        assertEquals("sig-b", jobs.get(0).getSignature());
+    }
+
+    @Test
+    public void testCompletedJobsAreCompacted() throws Exception {
+        final File f = new File(dir, "jobs.log");
+        final JobJournal journal = new JobJournal(f);
+        for (int i = 0; i < 600; i ++) {
+            journal.complete(journal.append(new byte[] { (byte) i }, "sig"));
+        }
+        final String outstanding = journal.append(new byte[] { 1 }, "sig");
+        assertTrue(FileUtils.readLines(f, "UTF-8").size() < 1000);
+        assertEquals(outstanding, new JobJournal(f).getOutstandingJobs().get(0).getId());
+    }
+}
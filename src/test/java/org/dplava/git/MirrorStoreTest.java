@@ -0,0 +1,75 @@
+package org.dplava.git;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+
+public class MirrorStoreTest {
+
+    private File dir;
+
+    private Git git;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/" + UUID.randomUUID().toString());
+        git = Git.init().setDirectory(new File(dir, "repo")).call();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        git.close();
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testFetchWhileMirrorIsOpen() throws Exception {
+        final MirrorStore store = new MirrorStore(new File(dir, "mirrors"), 1);
+        commit("a.xml");
+        try (MirrorStore.Mirror first = store.update(git.getRepository().getDirectory().getParentFile().toURI())) {
+            final RevCommit second = commit("b.xml");
+            // a second reader of the same repository is neither blocked by the first nor
+            // held up by garbage collection, which is deferred
+            final MirrorStore.Mirror other = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return store.update(git.getRepository().getDirectory().getParentFile().toURI());
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }).get(60, TimeUnit.SECONDS);
+            try {
+                assertNotNull(other.getRepository().parseCommit(second));
+            } finally {
+                other.close();
+            }
+        }
+    }
+
+    @Test
+    public void testGarbageCollectionDisabled() throws Exception {
+        final MirrorStore store = new MirrorStore(new File(dir, "mirrors"), 0);
+        for (int i = 0; i < 3; i ++) {
+            final RevCommit c = commit(i + ".xml");
+            try (MirrorStore.Mirror mirror = store.update(git.getRepository().getDirectory().getParentFile().toURI())) {
+                assertNotNull(mirror.getRepository().parseCommit(c));
+            }
+        }
+    }
+
+    private RevCommit commit(final String name) throws Exception {
+        FileUtils.writeStringToFile(new File(git.getRepository().getWorkTree(), name), "<record/>", StandardCharsets.UTF_8);
+        git.add().addFilepattern(".").call();
+        return git.commit().setAuthor("test", "test@fake.fake").setCommitter("committer", "committer@fake.fake").setMessage("Added " + name).call();
+    }
+}
@@ -1,6 +1,9 @@
 package org.dplava.git;
 
 import org.apache.commons.io.FileUtils;
+import org.dplava.util.Metrics;
+import org.dplava.validation.ValidationResultCache;
+import org.dplava.validation.ValidatorService;
 import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -12,11 +15,20 @@ import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -77,8 +89,142 @@ public class RepositoryCommitValidatorTest {
         assertTrue("An error about duplicate ids should be reported!", reports.getFailureReport(gitUrl, c.getName()).endsWith(" have the same id."));
     }
     
+    /**
+     * Runs commits through the whole pipeline against a local repository, the test rule
+     * set and temporary stores, so that nothing is fetched from the network.
+     */
+    @Test
+    public void testPipeline() throws Exception {
+        final File dir = new File("target/" + UUID.randomUUID().toString());
+        final File gitDir = new File(dir, "repo");
+        final URI gitUrl = gitDir.toURI();
+        try (Git git = Git.init().setDirectory(gitDir).call()) {
+            final InMemoryReportPersistence reports = new InMemoryReportPersistence();
+            final IdentifierIndexStore identifierIndexes = new IdentifierIndexStore(new File(dir, "identifier-index"));
+            final JobJournal journal = new JobJournal(new File(dir, "jobs.log"));
+            final RepositoryCommitValidator v = new RepositoryCommitValidator(1, new ForkJoinPool(2), new ValidatorService(10, 60, "classpath:rulesets/test"), reports, journal,
+                    new MirrorStore(new File(dir, "mirrors"), 0), new CommitStatusIndex(new File(dir, "commit-status")), identifierIndexes,
+                    new ValidationResultCache(new File(dir, "result-cache"), 1000));
+            final MockValidityRegistry r = new MockValidityRegistry();
+
+            // the first commit is a full scan
+            FileUtils.copyFile(new File("src/test/resources/sample-valid.xml"), new File(gitDir, "sample.xml"));
+            final RevCommit first = commit(git, "Initial commit");
+            validate(v, r, createPayload(gitUrl, MASTER, null, first.getName()));
+            assertEquals("success", r.getCommitStatus(gitUrl, first.getName()));
+            assertNotNull(identifierIndexes.load(gitUrl, first.getName()));
+
+            // later ones only validate the files changed since the last valid commit
+            final double validated = filesValidated("valid") + filesValidated("invalid");
+            FileUtils.copyFile(new File("src/test/resources/sample-missing-title.xml"), new File(gitDir, "sample1.xml"));
+            RevCommit c = commit(git, "Added invalid file");
+            validate(v, r, createPayload(gitUrl, MASTER, first.getName(), c.getName()));
+            assertEquals("failure", r.getCommitStatus(gitUrl, c.getName()));
+            assertEquals("Error: sample1.xml - At least one title element is required.", reports.getFailureReport(gitUrl, c.getName()));
+            assertEquals(1, filesValidated("valid") + filesValidated("invalid") - validated, 0);
+
+            // content that has been validated before is replayed from the result cache
+            final double cached = filesValidated("cached");
+            FileUtils.copyFile(new File("src/test/resources/sample-missing-title.xml"), new File(gitDir, "sample2.xml"));
+            RevCommit previous = c;
+            c = commit(git, "Added a copy of the invalid file");
+            validate(v, r, createPayload(gitUrl, MASTER, previous.getName(), c.getName()));
+            assertEquals("failure", r.getCommitStatus(gitUrl, c.getName()));
+            assertTrue(reports.getFailureReport(gitUrl, c.getName()), reports.getFailureReport(gitUrl, c.getName()).contains("Error: sample2.xml - At least one title element is required."));
+            assertEquals(2, filesValidated("cached") - cached, 0);
+
+            // duplicate identifiers are found by updating the index of the last valid commit
+            FileUtils.copyFile(new File("src/test/resources/sample-valid.xml"), new File(gitDir, "sample1.xml"));
+            git.rm().addFilepattern("sample2.xml").call();
+            previous = c;
+            c = commit(git, "Added files with duplicate IDs");
+            validate(v, r, createPayload(gitUrl, MASTER, previous.getName(), c.getName()));
+            assertEquals("failure", r.getCommitStatus(gitUrl, c.getName()));
+            assertTrue("An error about duplicate ids should be reported!", reports.getFailureReport(gitUrl, c.getName()).endsWith(" have the same id."));
+
+            // while one commit is being validated, two more are pushed to the branch: the
+            // one being validated is abandoned and the one still queued is dropped, and
+            // only the last is validated
+            git.rm().addFilepattern("sample1.xml").call();
+            final RevCommit abandoned = commit(git, "Removed duplicate");
+            FileUtils.writeStringToFile(new File(gitDir, "README.md"), "Sample records.", "UTF-8");
+            final RevCommit dropped = commit(git, "Added a readme");
+            FileUtils.writeStringToFile(new File(gitDir, "README.md"), "Sample records for testing.", "UTF-8");
+            final RevCommit last = commit(git, "Updated the readme");
+            final CountDownLatch pending = new CountDownLatch(1);
+            r.blockWhilePending(abandoned.getName(), pending);
+            final List<CompletableFuture<Void>> futures = new ArrayList<>();
+            futures.add(v.queueForValidation(createPayload(gitUrl, MASTER, c.getName(), abandoned.getName()), r));
+            futures.add(v.queueForValidation(createPayload(gitUrl, MASTER, abandoned.getName(), dropped.getName()), r));
+            futures.add(v.queueForValidation(createPayload(gitUrl, MASTER, dropped.getName(), last.getName()), r));
+            pending.countDown();
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+            assertEquals("superseded", r.getCommitStatus(gitUrl, abandoned.getName()));
+            assertEquals("superseded", r.getCommitStatus(gitUrl, dropped.getName()));
+            assertEquals("success", r.getCommitStatus(gitUrl, last.getName()));
+            assertTrue(journal.getOutstandingJobs().isEmpty());
+            v.shutdown(10, TimeUnit.SECONDS);
+        } finally {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        final File dir = new File("target/" + UUID.randomUUID().toString());
+        final URI gitUrl = new File(dir, "repo").toURI();
+        try {
+            final JobJournal journal = new JobJournal(new File(dir, "jobs.log"));
+            final RepositoryCommitValidator v = new RepositoryCommitValidator(1, new ForkJoinPool(1), new ValidatorService(10, 60, "classpath:rulesets/test"), new InMemoryReportPersistence(), journal,
+                    new MirrorStore(new File(dir, "mirrors"), 0), new CommitStatusIndex(new File(dir, "commit-status")), new IdentifierIndexStore(new File(dir, "identifier-index")),
+                    new ValidationResultCache(new File(dir, "result-cache"), 1000));
+            final MockValidityRegistry r = new MockValidityRegistry();
+            final CountDownLatch pending = new CountDownLatch(1);
+            r.blockWhilePending("1", pending);
+            final CompletableFuture<Void> running = v.queueForValidation(createPayload(gitUrl, MASTER, "1"), r);
+            final CompletableFuture<Void> queued = v.queueForValidation(createPayload(gitUrl, "refs/heads/other", "2"), r);
+            assertFalse(v.shutdown(1, TimeUnit.SECONDS));
+            pending.countDown();
+
+            // nothing is left waiting, and every commit is left to be recovered
+            running.get(10, TimeUnit.SECONDS);
+            queued.get(10, TimeUnit.SECONDS);
+            v.queueForValidation(createPayload(gitUrl, "refs/heads/other", "2", "3"), r).get(10, TimeUnit.SECONDS);
+            assertEquals(3, journal.getOutstandingJobs().size());
+        } finally {
+            // quietly, as the abandoned validation may still be creating its mirror
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static RevCommit commit(final Git git, final String message) throws GitAPIException {
+        git.add().addFilepattern(".").call();
+        return git.commit().setAuthor("test", "test@fake.fake").setMessage(message).setCommitter("committer", "committer@fake.fake").call();
+    }
+
+    private static void validate(final RepositoryCommitValidator v, final ValidityRegistry r, final GithubPayload payload) throws Exception {
+        v.queueForValidation(payload, r).get(60, TimeUnit.SECONDS);
+    }
+
+    private static double filesValidated(final String result) {
+        return Metrics.getDefault().counter("dplava_files_validated_total", "Files validated, by result (\"cached\" if a stored result was used).", "result", result).get();
+    }
+
+    @Test
+    public void testParseRepositoryConcurrency() {
+        final Map<String, Integer> concurrency = RepositoryCommitValidator.parseRepositoryConcurrency("dplava/large=2, /dplava/other/ = 3,bogus,dplava/bad=x");
+        assertEquals(2, concurrency.size());
+        assertEquals(Integer.valueOf(2), concurrency.get("dplava/large"));
+        assertEquals(Integer.valueOf(3), concurrency.get("dplava/other"));
+    }
+
     private GithubPayload createPayload(URI gitUrl, String branch, String commitName) throws InvalidKeyException, NoSuchAlgorithmException, UnsupportedEncodingException {
-        String fakeJSONObject = "{\"ref\": \"" + branch + "\", \"repository\":{\"url\":\"" + gitUrl + "\"},\"after\":\"" + commitName + "\"}";
+        return createPayload(gitUrl, branch, null, commitName);
+    }
+
+    private GithubPayload createPayload(URI gitUrl, String branch, String previousCommitName, String commitName) throws InvalidKeyException, NoSuchAlgorithmException, UnsupportedEncodingException {
+        String fakeJSONObject = "{\"ref\": \"" + branch + "\", \"repository\":{\"url\":\"" + gitUrl + "\"},"
+                + (previousCommitName == null ? "" : "\"before\":\"" + previousCommitName + "\",") + "\"after\":\"" + commitName + "\"}";
         return new GithubPayload(fakeJSONObject.getBytes(), GithubPayload.computeDigest(fakeJSONObject.getBytes("UTF-8")));
     }
 
@@ -114,7 +260,20 @@ public class RepositoryCommitValidatorTest {
     private static class MockValidityRegistry implements ValidityRegistry {
 
 
-        private Map<String, String> hashToStatusMap = new HashMap<String, String>();
+        private Map<String, String> hashToStatusMap = new ConcurrentHashMap<String, String>();
+
+        private String blockedCommitHash;
+
+        private CountDownLatch blockedUntil;
+
+        /**
+         * Makes reporting the given commit as pending (and so its validation) wait until the
+         * latch is released.
+         */
+        public void blockWhilePending(String commitHash, CountDownLatch latch) {
+            blockedCommitHash = commitHash;
+            blockedUntil = latch;
+        }
 
         @Override
         public String getCommitStatus(URI repo, String commitHash) throws IOException {
@@ -134,6 +293,18 @@ public class RepositoryCommitValidatorTest {
         @Override
         public void reportCommitPending(GithubPayload payload) {
             hashToStatusMap.put(payload.getCommitHash(), "pending");
+            if (payload.getCommitHash().equals(blockedCommitHash)) {
+                try {
+                    blockedUntil.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        @Override
+        public void reportCommitSuperseded(GithubPayload payload) {
+            hashToStatusMap.put(payload.getCommitHash(), "superseded");
         }
 
         @Override
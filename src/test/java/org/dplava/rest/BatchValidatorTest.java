@@ -0,0 +1,114 @@
+package org.dplava.rest;
+
+import org.apache.commons.io.FileUtils;
+import org.dplava.validation.DPLAVAMetadataValidator;
+import org.dplava.validation.ParallelFileValidator;
+import org.dplava.validation.RecordSource;
+import org.dplava.validation.RuleSet;
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchValidatorTest {
+
+    @Test
+    public void testBatch() throws Exception {
+        final Iterator<String> files = Arrays.asList("sample-valid.xml", "sample-missing-title.xml", "sample-not-well-formed.xml", "sample-valid.xml").iterator();
+        final BatchValidator.Records records = () -> files.hasNext() ? record(files.next()) : null;
+        final DPLAVAMetadataValidator validator = new DPLAVAMetadataValidator(RuleSet.load("classpath:rulesets/test"), true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BatchValidator(validator, new ParallelFileValidator(new ForkJoinPool(2)), records, 3).write(out);
+
+        final JsonObject result = Json.createReader(new ByteArrayInputStream(out.toByteArray())).readObject();
+        assertEquals("test-1", result.getString("ruleSetVersion"));
+        assertEquals(4, result.getInt("fileCount"));
+        assertEquals(2, result.getInt("invalidCount"));
+        assertFalse(result.getBoolean("valid"));
+        final JsonArray results = result.getJsonArray("files");
+        assertTrue(results.getJsonObject(0).getBoolean("valid"));
+        assertEquals("Y09633B", results.getJsonObject(0).getString("identifier"));
+        final JsonObject missingTitle = results.getJsonObject(1).getJsonArray("errors").getJsonObject(0);
+        assertEquals("error", missingTitle.getString("severity"));
+        assertEquals("dcterms:title", missingTitle.getString("rule"));
+        assertEquals("At least one title element is required.", missingTitle.getString("message"));
+        assertFalse(results.getJsonObject(2).getBoolean("valid"));
+        assertTrue(results.getJsonObject(3).getBoolean("valid"));
+        assertEquals("Files \"sample-valid.xml\" and \"sample-valid.xml\" have the same id.", result.getJsonArray("errors").getJsonObject(0).getString("message"));
+    }
+
+    @Test
+    public void testTextReport() throws Exception {
+        final Iterator<String> files = Arrays.asList("sample-valid.xml", "sample-missing-title.xml").iterator();
+        final BatchValidator.Records records = () -> files.hasNext() ? record(files.next()) : null;
+        final DPLAVAMetadataValidator validator = new DPLAVAMetadataValidator(RuleSet.load("classpath:rulesets/test"), true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BatchValidator(validator, new ParallelFileValidator(new ForkJoinPool(2)), records, 3, BatchValidator.Format.TEXT).write(out);
+        assertEquals("Error: sample-missing-title.xml - At least one title element is required.", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testJUnitReport() throws Exception {
+        final Iterator<String> files = Arrays.asList("sample-valid.xml", "sample-missing-title.xml", "sample-not-well-formed.xml", "sample-valid.xml").iterator();
+        final BatchValidator.Records records = () -> files.hasNext() ? record(files.next()) : null;
+        final DPLAVAMetadataValidator validator = new DPLAVAMetadataValidator(RuleSet.load("classpath:rulesets/test"), true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BatchValidator(validator, new ParallelFileValidator(new ForkJoinPool(2)), records, 3, BatchValidator.Format.JUNIT).write(out);
+
+        final Element suite = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new ByteArrayInputStream(out.toByteArray())).getDocumentElement();
+        // a test case for each record, and one for the duplicate identifiers
+        final NodeList testCases = suite.getElementsByTagName("testcase");
+        assertEquals("5", suite.getAttribute("tests"));
+        assertEquals(5, testCases.getLength());
+        assertEquals("records/sample-valid.xml", ((Element) testCases.item(0)).getAttribute("name"));
+        assertEquals(0, ((Element) testCases.item(0)).getChildNodes().getLength());
+        assertEquals("records/sample-missing-title.xml", ((Element) testCases.item(1)).getAttribute("name"));
+        assertEquals("(repository)", ((Element) testCases.item(4)).getAttribute("name"));
+        // counted by test case rather than by problem
+        assertEquals("2", suite.getAttribute("failures"));
+        assertEquals("1", suite.getAttribute("errors"));
+    }
+
+    @Test
+    public void testEmptyBatchIsInvalid() throws Exception {
+        final DPLAVAMetadataValidator validator = new DPLAVAMetadataValidator(RuleSet.load("classpath:rulesets/test"), true);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BatchValidator(validator, new ParallelFileValidator(new ForkJoinPool(2)), () -> null, 3).write(out);
+
+        final JsonObject result = Json.createReader(new ByteArrayInputStream(out.toByteArray())).readObject();
+        assertEquals(0, result.getInt("fileCount"));
+        assertFalse(result.getBoolean("valid"));
+        assertEquals("No XML files were found to validate.", result.getJsonArray("errors").getJsonObject(0).getString("message"));
+    }
+
+    private static RecordSource record(final String name) throws IOException {
+        final byte[] content = FileUtils.readFileToByteArray(new File("src/test/resources/" + name));
+        return new RecordSource() {
+            @Override
+            public String getPath() {
+                return "records/" + name;
+            }
+
+            @Override
+            public InputStream openStream() {
+                return new ByteArrayInputStream(content);
+            }
+        };
+    }
+}
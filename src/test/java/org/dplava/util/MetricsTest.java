@@ -0,0 +1,42 @@
+package org.dplava.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void testRender() {
+        final Metrics metrics = new Metrics();
+        metrics.counter("test_total", "A counter.", "result", "valid").increment();
+        metrics.counter("test_total", "A counter.", "result", "valid").add(2);
+        metrics.counter("test_total", "A counter.", "result", "in\"valid").increment();
+        metrics.gauge("test_gauge", "A gauge.", () -> 0.5);
+        final Metrics.Histogram h = metrics.histogram("test_seconds", "A histogram.");
+        h.observe(0.003);
+        h.observe(2);
+        h.observe(1000);
+
+        final String text = metrics.render();
+        assertTrue(text, text.contains("# HELP test_total A counter.\n# TYPE test_total counter\n"));
+        assertTrue(text, text.contains("test_total{result=\"valid\"} 3\n"));
+        assertTrue(text, text.contains("test_total{result=\"in\\\"valid\"} 1\n"));
+        assertTrue(text, text.contains("# TYPE test_gauge gauge\ntest_gauge 0.5\n"));
+        assertTrue(text, text.contains("test_seconds_bucket{le=\"0.001\"} 0\n"));
+        assertTrue(text, text.contains("test_seconds_bucket{le=\"0.005\"} 1\n"));
+        assertTrue(text, text.contains("test_seconds_bucket{le=\"2.5\"} 2\n"));
+        assertTrue(text, text.contains("test_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(text, text.contains("test_seconds_sum 1002.003\n"));
+        assertTrue(text, text.contains("test_seconds_count 3\n"));
+        assertEquals(3, h.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTypeConflict() {
+        final Metrics metrics = new Metrics();
+        metrics.counter("test", "A counter.");
+        metrics.histogram("test", "Not a counter.");
+    }
+}
@@ -0,0 +1,65 @@
+package org.dplava.validation;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class EmbeddedSchematronValidatorTest {
+
+    private static final String XSD = new File("src/test/resources/sample-schematron.xsd").toURI().toString();
+
+    private File cacheDir;
+
+    @Before
+    public void setUp() {
+        cacheDir = new File("target/" + UUID.randomUUID().toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(cacheDir);
+    }
+
+    @Test
+    public void testGeneratedStylesheetIsCached() throws Exception {
+        final SchematronCache cache = new SchematronCache(cacheDir);
+        new EmbeddedSchematronValidator(XSD, cache);
+        assertEquals(1, cacheDir.listFiles().length);
+        final String key = SchematronCache.computeKey(FileUtils.readFileToByteArray(new File("src/test/resources/sample-schematron.xsd")),
+                "ExtractSchFromXSD-2.xsl", "iso_dsdl_include.xsl", "iso_abstract_expand.xsl", "iso_svrl_for_xslt2.xsl");
+        assertNotNull(cache.get(key));
+
+        assertMissingTitleReported(new EmbeddedSchematronValidator(XSD, cache));
+        assertEquals(1, cacheDir.listFiles().length);
+    }
+
+    @Test
+    public void testWithoutCache() throws Exception {
+        assertMissingTitleReported(new EmbeddedSchematronValidator(XSD, null));
+        assertTrue(!cacheDir.exists());
+    }
+
+    private void assertMissingTitleReported(EmbeddedSchematronValidator v) throws Exception {
+        DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+        f.setNamespaceAware(true);
+        Document d = f.newDocumentBuilder().parse(new File("src/test/resources/sample-missing-title.xml"));
+        ErrorAggregator errors = new ErrorAggregator();
+        v.validateXmlDocument("sample-missing-title.xml", d, errors);
+        assertEquals("Error: sample-missing-title.xml - At least one title element is required.", errors.getErrors());
+
+        d = f.newDocumentBuilder().parse(new File("src/test/resources/sample-valid.xml"));
+        errors = new ErrorAggregator();
+        v.validateXmlDocument("sample-valid.xml", d, errors);
+        assertTrue(errors.getErrors(), errors.isValid());
+    }
+}
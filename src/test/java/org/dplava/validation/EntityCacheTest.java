@@ -0,0 +1,91 @@
+package org.dplava.validation;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class EntityCacheTest {
+
+    private HttpServer server;
+
+    private AtomicInteger fetches = new AtomicInteger();
+
+    private AtomicInteger notModified = new AtomicInteger();
+
+    private File dir;
+
+    private URL url;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/" + UUID.randomUUID().toString());
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/schema.xsd", exchange -> {
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                notModified.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                fetches.incrementAndGet();
+                final byte[] body = "<schema/>".getBytes("UTF-8");
+                exchange.getResponseHeaders().add("ETag", "\"v1\"");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+        url = new URL("http://localhost:" + server.getAddress().getPort() + "/schema.xsd");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop(0);
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testFetchedOnce() throws Exception {
+        EntityCache cache = new EntityCache(dir, 1024, 60);
+        assertEquals("<schema/>", cache.get(url));
+        assertEquals("<schema/>", cache.get(url));
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void testPersistedAcrossInstances() throws Exception {
+        new EntityCache(dir, 1024, 60).get(url);
+        assertEquals("<schema/>", new EntityCache(dir, 1024, 60).get(url));
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void testStaleEntryRevalidated() throws Exception {
+        EntityCache cache = new EntityCache(null, 1024, -1);
+        cache.get(url);
+        assertEquals("<schema/>", cache.get(url));
+        assertEquals(1, fetches.get());
+        assertEquals(1, notModified.get());
+    }
+
+    @Test
+    public void testEvictedWhenFull() throws Exception {
+        EntityCache cache = new EntityCache(null, 4, 60);
+        cache.get(url);
+        cache.get(new URL(url.toString() + "?other"));
+        cache.get(url);
+        assertEquals(3, fetches.get());
+    }
+}
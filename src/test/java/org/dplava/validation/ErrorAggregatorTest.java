@@ -0,0 +1,76 @@
+package org.dplava.validation;
+
+import org.dplava.validation.ValidationError.Severity;
+import org.junit.Test;
+import org.xml.sax.SAXParseException;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ErrorAggregatorTest {
+
+    @Test
+    public void testStructuredErrors() throws Exception {
+        final ErrorAggregator errors = new ErrorAggregator();
+        errors.setCurrentFile("a.xml");
+        errors.error(new SAXParseException("cvc-complex-type.2.4.a: Invalid content was found.", null, null, 3, 14));
+        errors.fatalError(new SAXParseException("Content is not allowed in prolog.", null, null, 1, 1));
+        errors.error("b.xml", "dcterms:title", "At least one title element is required.");
+        assertEquals("Fatal: a.xml - Content is not allowed in prolog.\n"
+                + "Error: a.xml - cvc-complex-type.2.4.a: Invalid content was found.\n"
+                + "Error: b.xml - At least one title element is required.", errors.getErrors());
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ErrorRenderer.writeJson(errors, out);
+        final JsonObject report = Json.createReader(new ByteArrayInputStream(out.toByteArray())).readObject();
+        assertEquals(2, report.getJsonObject("summary").getInt("invalidFiles"));
+        assertEquals(1, report.getJsonObject("summary").getJsonObject("rules").getInt("cvc-complex-type.2.4.a"));
+        final JsonObject first = report.getJsonArray("errors").getJsonObject(0);
+        assertEquals("cvc-complex-type.2.4.a", first.getString("rule"));
+        assertEquals(3, first.getInt("line"));
+        assertEquals(14, first.getInt("column"));
+    }
+
+    @Test
+    public void testErrorsPerFileAreCapped() {
+        final ErrorAggregator errors = new ErrorAggregator(2);
+        for (int i = 0; i < 5; i ++) {
+            errors.error("a.xml", null, "Problem " + i + ".");
+        }
+        errors.error("Repository problem.");
+        assertEquals(5, errors.getCount(Severity.ERROR) - 1);
+        assertEquals(3, errors.getSuppressedCount());
+        assertEquals("Error: a.xml - Problem 0.\n"
+                + "Error: a.xml - Problem 1.\n"
+                + "Error: Repository problem.\n"
+                + "Error: a.xml - 3 further problems not shown.", errors.getErrors());
+    }
+
+    @Test
+    public void testSpilledErrorsMatchInMemoryErrors() throws Exception {
+        final ErrorAggregator memory = new ErrorAggregator();
+        try (ErrorAggregator spilled = ErrorAggregator.spilling()) {
+            for (ErrorAggregator errors : new ErrorAggregator[] { memory, spilled }) {
+                errors.error("a.xml", "rule\t1", "Multi-line\nmessage with a \\ and a\ttab.");
+                errors.warning(new SAXParseException("Suspect value.", null, null, 2, 5));
+                assertFalse(errors.isValid());
+            }
+            assertEquals(memory.getErrors(), spilled.getErrors());
+            final ByteArrayOutputStream memoryJson = new ByteArrayOutputStream();
+            final ByteArrayOutputStream spilledJson = new ByteArrayOutputStream();
+            ErrorRenderer.writeJson(memory, memoryJson);
+            ErrorRenderer.writeJson(spilled, spilledJson);
+            assertEquals(memoryJson.toString("UTF-8"), spilledJson.toString("UTF-8"));
+
+            final ByteArrayOutputStream junit = new ByteArrayOutputStream();
+            ErrorRenderer.writeJUnit(spilled, "dplava", junit);
+            assertTrue(junit.toString("UTF-8"), junit.toString("UTF-8").contains("<testcase classname=\"dplava\" name=\"a.xml\"><failure message="));
+        }
+    }
+}
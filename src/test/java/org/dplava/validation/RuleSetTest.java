@@ -0,0 +1,118 @@
+package org.dplava.validation;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class RuleSetTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File("target/" + UUID.randomUUID().toString());
+        FileUtils.copyDirectory(new File("src/test/resources/rulesets/test"), dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testClasspathRuleSet() throws Exception {
+        final RuleSet rules = RuleSet.load("classpath:rulesets/test");
+        assertEquals("test-1", rules.getVersion());
+        assertValidates(new DPLAVAMetadataValidator(rules, true));
+    }
+
+    @Test
+    public void testPregeneratedSchematron() throws Exception {
+        EmbeddedSchematronValidator.compileSchematron(RuleSet.fromDirectory(dir), new File(dir, "schematron.xsl"));
+        FileUtils.writeStringToFile(new File(dir, RuleSet.DESCRIPTOR), "schematron=schematron.xsl\n", StandardCharsets.UTF_8, true);
+        final RuleSet rules = RuleSet.load(dir.getPath());
+        assertEquals(new File(dir, "schematron.xsl").toURI().toURL(), rules.getSchematronUrl());
+        assertValidates(new DPLAVAMetadataValidator(rules, false));
+    }
+
+    @Test
+    public void testHotSwap() throws Exception {
+        final ValidatorService service = new ValidatorService(10, 60, dir.getPath());
+        final DPLAVAMetadataValidator first = service.getValidator();
+        assertEquals("test-1", first.getRuleSetVersion());
+
+        service.refresh();
+        assertTrue(first == service.getValidator());
+
+        final File descriptor = new File(dir, RuleSet.DESCRIPTOR);
+        FileUtils.writeStringToFile(descriptor, FileUtils.readFileToString(descriptor, StandardCharsets.UTF_8).replace("test-1", "test-2"), StandardCharsets.UTF_8);
+        service.refresh();
+        assertNotSame(first, service.getValidator());
+        assertEquals("test-2", service.getValidator().getRuleSetVersion());
+        assertEquals("test-2", service.getSchemaVersion());
+    }
+
+    @Test
+    public void testImportedSchemaChangeMissesResultCache() throws Exception {
+        final String before = new DPLAVAMetadataValidator(RuleSet.fromDirectory(dir), false).getRulesVersion();
+        appendComment(new File(dir, "dcterms.xsd"));
+        final String after = new DPLAVAMetadataValidator(RuleSet.fromDirectory(dir), false).getRulesVersion();
+        assertNotEquals(before, after);
+        assertCacheMisses(before, after);
+    }
+
+    @Test
+    public void testSchemaChangeWithPregeneratedSchematronMissesResultCache() throws Exception {
+        EmbeddedSchematronValidator.compileSchematron(RuleSet.fromDirectory(dir), new File(dir, "schematron.xsl"));
+        FileUtils.writeStringToFile(new File(dir, RuleSet.DESCRIPTOR), "schematron=schematron.xsl\n", StandardCharsets.UTF_8, true);
+        final String before = new DPLAVAMetadataValidator(RuleSet.fromDirectory(dir), false).getRulesVersion();
+        appendComment(new File(dir, "rules.xsd"));
+        final String after = new DPLAVAMetadataValidator(RuleSet.fromDirectory(dir), false).getRulesVersion();
+        assertNotEquals(before, after);
+        assertCacheMisses(before, after);
+
+        final File descriptor = new File(dir, RuleSet.DESCRIPTOR);
+        FileUtils.writeStringToFile(descriptor, FileUtils.readFileToString(descriptor, StandardCharsets.UTF_8).replace("test-1", "test-2"), StandardCharsets.UTF_8);
+        assertNotEquals(after, new DPLAVAMetadataValidator(RuleSet.fromDirectory(dir), false).getRulesVersion());
+    }
+
+    /**
+     * Stores a result under the first rules version and checks that it isn't replayed
+     * under the second.
+     */
+    private void assertCacheMisses(final String storedRulesVersion, final String currentRulesVersion) {
+        final ValidationResultCache cache = new ValidationResultCache(new File(dir, "result-cache"), 10);
+        final ErrorAggregator stale = new ErrorAggregator();
+        stale.error("a.xml", "cvc-elt.1.a", "Stale schema error.");
+        cache.store("blob", storedRulesVersion, "a.xml", stale, new RecordFacts());
+        assertNotNull(cache.replay("blob", storedRulesVersion, "a.xml", new ErrorAggregator()));
+        assertNull(cache.replay("blob", currentRulesVersion, "a.xml", new ErrorAggregator()));
+    }
+
+    private static void appendComment(final File xsd) throws IOException {
+        FileUtils.writeStringToFile(xsd, FileUtils.readFileToString(xsd, StandardCharsets.UTF_8).replace("</xs:schema>", "<!-- changed -->\n</xs:schema>"), StandardCharsets.UTF_8);
+    }
+
+    private void assertValidates(final DPLAVAMetadataValidator v) throws Exception {
+        assertTrue(v.isComplete());
+        ErrorAggregator errors = new ErrorAggregator();
+        v.validateFile(new File("src/test/resources/sample-valid.xml"), errors);
+        assertEquals("", errors.getErrors());
+        errors = new ErrorAggregator();
+        v.validateFile(new File("src/test/resources/sample-missing-title.xml"), errors);
+        assertEquals("Error: sample-missing-title.xml - At least one title element is required.", errors.getErrors());
+    }
+}
@@ -0,0 +1,60 @@
+package org.dplava.validation;
+
+import org.dplava.validation.ValidationError.Severity;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TerminationPolicyTest {
+
+    @Test
+    public void testFailFast() throws Exception {
+        final ErrorAggregator errors = new ErrorAggregator();
+        validate("sample-missing-title.xml", 20, new TerminationPolicy(3, 0, 0, 0), errors);
+        assertEquals(4, errors.getCount(Severity.ERROR));
+        assertTrue(errors.getErrors(), errors.getErrors().startsWith("Error: Validation stopped after 3 errors were found, with 3 of the 20 files validated.\n"));
+    }
+
+    @Test
+    public void testFailFastLimitReachedByLastRecord() throws Exception {
+        final ErrorAggregator errors = new ErrorAggregator();
+        validate("sample-missing-title.xml", 3, new TerminationPolicy(3, 0, 0, 0), errors);
+        assertEquals(3, errors.getCount(Severity.ERROR));
+        assertFalse(errors.getErrors(), errors.getErrors().contains("Validation stopped"));
+    }
+
+    @Test
+    public void testSamplingStopsWhenSampleFails() throws Exception {
+        final ErrorAggregator errors = new ErrorAggregator();
+        validate("sample-missing-title.xml", 100, new TerminationPolicy(0, 50, 20, 50), errors);
+        assertEquals(1 + TerminationPolicy.EXAMPLE_RECORDS, errors.getCount(Severity.ERROR));
+        assertTrue(errors.getErrors(), errors.getErrors().startsWith("Error: Validation stopped after a random sample of 20 of the 100 files: 20 (100%) were invalid, so an estimated 100 files are invalid."));
+    }
+
+    @Test
+    public void testSamplingContinuesWhenSamplePasses() throws Exception {
+        final ErrorAggregator errors = new ErrorAggregator();
+        final List<RecordFacts> facts = validate("sample-valid.xml", 100, new TerminationPolicy(0, 50, 20, 50), errors);
+        assertTrue(errors.getErrors(), errors.isEmpty());
+        for (RecordFacts f : facts) {
+            assertNotNull(f);
+        }
+    }
+
+    private static List<RecordFacts> validate(final String name, final int count, final TerminationPolicy policy, final ErrorAggregator errors) throws Exception {
+        final DPLAVAMetadataValidator validator = new DPLAVAMetadataValidator(RuleSet.load("classpath:rulesets/test"), true);
+        final List<RecordSource> records = new ArrayList<>();
+        for (int i = 0; i < count; i ++) {
+            records.add(RecordSource.forFile(new File("src/test/resources/" + name)));
+        }
+        return new ParallelFileValidator(new ForkJoinPool(1)).validateRecords(validator, records, errors, policy);
+    }
+}
@@ -0,0 +1,67 @@
+package org.dplava.validation;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ValidationResultCacheTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() {
+        dir = new File("target/" + UUID.randomUUID().toString());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testReplayUsesCurrentName() {
+        final ValidationResultCache cache = new ValidationResultCache(dir, 10);
+        final ErrorAggregator original = new ErrorAggregator();
+        original.error("a.xml - At least one title element is required.");
+        original.error("Schematron validation not performed!");
+        final RecordFacts facts = new RecordFacts();
+        facts.putIfAbsent(RecordFacts.IDENTIFIER, "id-1");
+        cache.store("blob", "rules", "a.xml", original, facts);
+
+        final ErrorAggregator replayed = new ErrorAggregator();
+        assertEquals("id-1", cache.replay("blob", "rules", "b.xml", replayed).getIdentifier());
+        assertEquals("Error: b.xml - At least one title element is required.\nError: Schematron validation not performed!", replayed.getErrors());
+    }
+
+    @Test
+    public void testRulesVersionIsPartOfKey() {
+        final ValidationResultCache cache = new ValidationResultCache(dir, 10);
+        cache.store("blob", "rules-1", "a.xml", new ErrorAggregator(), new RecordFacts());
+        final ErrorAggregator errors = new ErrorAggregator();
+        assertNull(cache.replay("blob", "rules-2", "a.xml", errors));
+        assertEquals(true, errors.isEmpty());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        final ValidationResultCache cache = new ValidationResultCache(dir, 2);
+        cache.store("blob-1", "rules", "a.xml", new ErrorAggregator(), new RecordFacts());
+        cache.store("blob-2", "rules", "a.xml", new ErrorAggregator(), new RecordFacts());
+        cache.store("blob-3", "rules", "a.xml", new ErrorAggregator(), new RecordFacts());
+        for (File f : FileUtils.listFiles(dir, null, true)) {
+            f.setLastModified(1000);
+        }
+        cache.replay("blob-1", "rules", "a.xml", new ErrorAggregator());
+        cache.evict();
+        assertEquals(2, FileUtils.listFiles(dir, null, true).size());
+        assertNotNull(cache.replay("blob-1", "rules", "a.xml", new ErrorAggregator()));
+    }
+}